@@ -0,0 +1,67 @@
+package com.androidegris.loderunner;
+
+/**
+ * Bounding box of the stage areas that changed since the last frame, in
+ * (unscaled) stage pixels. Game events add areas, the drawing thread drains
+ * it once per frame to know what has to be drawn again.
+ */
+class DirtyRegion {
+
+	private int left;
+	private int top;
+	private int right;
+	private int bottom;
+	private boolean empty = true;
+	private boolean all = false;
+
+	/** Adds a rectangle to the region */
+	public synchronized void add(int x, int y, int width, int height) {
+		if (empty) {
+			left = x;
+			top = y;
+			right = x + width;
+			bottom = y + height;
+			empty = false;
+		} else {
+			left = Math.min(left, x);
+			top = Math.min(top, y);
+			right = Math.max(right, x + width);
+			bottom = Math.max(bottom, y + height);
+		}
+	}
+
+	/** Adds a tile to the region */
+	public void addTile(int xTile, int yTile) {
+		add(xTile * LodeRunnerStage.SPRITE_WIDTH, yTile * LodeRunnerStage.SPRITE_HEIGHT, LodeRunnerStage.SPRITE_WIDTH,
+				LodeRunnerStage.SPRITE_HEIGHT);
+	}
+
+	/** Marks the whole stage as changed */
+	public synchronized void addAll() {
+		all = true;
+	}
+
+	/**
+	 * Copies the region into bounds as {left, top, right, bottom}, clipped to
+	 * the stage, and empties it.
+	 * 
+	 * @return false if nothing has changed
+	 */
+	public synchronized boolean drain(int[] bounds) {
+		if (all) {
+			bounds[0] = 0;
+			bounds[1] = 0;
+			bounds[2] = LodeRunnerStage.STAGE_WIDTH_PIXELS;
+			bounds[3] = LodeRunnerStage.STAGE_HEIGHT_PIXELS;
+		} else if (!empty) {
+			bounds[0] = Math.max(left, 0);
+			bounds[1] = Math.max(top, 0);
+			bounds[2] = Math.min(right, LodeRunnerStage.STAGE_WIDTH_PIXELS);
+			bounds[3] = Math.min(bottom, LodeRunnerStage.STAGE_HEIGHT_PIXELS);
+		}
+		boolean changed = all || !empty;
+		all = false;
+		empty = true;
+		return changed;
+	}
+}
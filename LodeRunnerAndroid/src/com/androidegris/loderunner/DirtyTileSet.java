@@ -0,0 +1,60 @@
+package com.androidegris.loderunner;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of the stage tiles changed by the game events, one bit per tile index.
+ * Game events mark tiles, the stage drains them when it records a display
+ * list (see LodeRunnerStage.publishDisplayList).
+ *
+ * Bits are packed in 64 bits words, set by atomic compare and swap and taken
+ * by atomic swap, so neither marking nor draining locks or allocates, and a
+ * tile marked twice is only drawn once.
+ */
+class DirtyTileSet {
+
+	/** Number of tiles in the set */
+	public static final int SIZE = LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT;
+	/** Number of 64 bits words */
+	public static final int WORDS = (SIZE + 63) / 64;
+
+	private final AtomicLongArray words = new AtomicLongArray(WORDS);
+
+	/** Marks a tile as changed */
+	public void mark(int tileIndex) {
+		int word = tileIndex >> 6;
+		long bit = 1L << (tileIndex & 63);
+		long bits;
+		do {
+			bits = words.get(word);
+			if ((bits & bit) != 0) {
+				return;
+			}
+		} while (!words.compareAndSet(word, bits, bits | bit));
+	}
+
+	/** Marks every tile as changed */
+	public void markAll() {
+		for (int word = 0; word < WORDS; word++) {
+			words.set(word, getAllBits(word));
+		}
+	}
+
+	/** Forgets every change */
+	public void clear() {
+		for (int word = 0; word < WORDS; word++) {
+			words.set(word, 0);
+		}
+	}
+
+	/** Takes the changed tiles of a word, tile index word * 64 + n for bit n, and empties it */
+	public long takeWord(int word) {
+		return words.getAndSet(word, 0);
+	}
+
+	/** Bits of a word for every tile it holds */
+	public static long getAllBits(int word) {
+		int count = Math.min(64, SIZE - word * 64);
+		return count == 64 ? -1L : (1L << count) - 1;
+	}
+}
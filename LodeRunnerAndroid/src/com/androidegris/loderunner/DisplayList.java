@@ -0,0 +1,217 @@
+package com.androidegris.loderunner;
+
+import com.androidegris.loderunner.midp.Graphics;
+
+/**
+ * Drawing commands recorded by the game events for one frame. The timer
+ * thread records what has to be drawn, the drawing thread replays it, so
+ * rendering never reads the live hero, villains and holes.
+ *
+ * Commands are packed in an int array, an opcode followed by its arguments.
+ * Tile changes are recorded apart, as {tile index, tile appearance} pairs,
+ * along with the stage area changed since the previous list, so that the
+ * drawing thread paints again exactly what this list has changed.
+ */
+class DisplayList {
+
+	/** Draw a stage sprite: frame, x, y */
+	private static final int OP_SPRITE = 0;
+	/** Draw a villain, or its direction when off screen: frame, x, y, centerX, centerY */
+	private static final int OP_VILLAIN = 1;
+	/** Draw a string with the stage font: text index, x, y */
+	private static final int OP_TEXT = 2;
+	/** Maximum number of recorded tile changes, more are replaced by the whole stage */
+	public static final int MAX_TILES = 2 * LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT;
+
+	private int[] commands = new int[256];
+	private int commandsLength = 0;
+	private String[] texts = new String[4];
+	private int textsCount = 0;
+	private final int[] tiles = new int[2 * MAX_TILES];
+	private int tilesCount = 0;
+	/** Changed stage area, as {left, top, right, bottom} in stage pixels, if dirty */
+	private final int[] dirtyBounds = new int[4];
+	private final int[] drainedBounds = new int[4];
+	private boolean dirty = false;
+
+	/** Stage loading state when recorded */
+	public boolean isLoaded;
+	/** Hero is on the stage */
+	public boolean hasHero;
+	/** Hero position, in pixels */
+	public int heroCenterX, heroCenterY, heroY;
+	/** Hero message must be erased at the top of the stage */
+	public boolean isMessageAtTop;
+
+	/** Forgets everything recorded */
+	public void reset() {
+		commandsLength = 0;
+		for (int i = 0; i < textsCount; i++) {
+			texts[i] = null;
+		}
+		textsCount = 0;
+		tilesCount = 0;
+		dirty = false;
+	}
+
+	/**
+	 * Takes over the changes of a list replaced before the drawing thread
+	 * took it: its tile changes, which come first, and its changed area
+	 */
+	public void carryChanges(DisplayList list) {
+		System.arraycopy(list.tiles, 0, tiles, 0, 2 * list.tilesCount);
+		tilesCount = list.tilesCount;
+		if (list.dirty) {
+			System.arraycopy(list.dirtyBounds, 0, dirtyBounds, 0, 4);
+			dirty = true;
+		}
+	}
+
+	/** Adds the stage area changed since the previous list, and empties the region */
+	public void drainDirtyRegion(DirtyRegion region) {
+		if (!region.drain(drainedBounds)) {
+			return;
+		}
+		if (!dirty) {
+			System.arraycopy(drainedBounds, 0, dirtyBounds, 0, 4);
+			dirty = true;
+		} else {
+			dirtyBounds[0] = Math.min(dirtyBounds[0], drainedBounds[0]);
+			dirtyBounds[1] = Math.min(dirtyBounds[1], drainedBounds[1]);
+			dirtyBounds[2] = Math.max(dirtyBounds[2], drainedBounds[2]);
+			dirtyBounds[3] = Math.max(dirtyBounds[3], drainedBounds[3]);
+		}
+	}
+
+	/**
+	 * Copies the changed stage area into bounds as {left, top, right, bottom}
+	 * 
+	 * @return false if nothing has changed
+	 */
+	public boolean getDirtyBounds(int[] bounds) {
+		if (dirty) {
+			System.arraycopy(dirtyBounds, 0, bounds, 0, 4);
+		}
+		return dirty;
+	}
+
+	/** Forgets the changed area, once painted */
+	public void clearDirty() {
+		dirty = false;
+	}
+
+	/** Forgets the tile changes */
+	public void clearTiles() {
+		tilesCount = 0;
+	}
+
+	public int getTilesCount() {
+		return tilesCount;
+	}
+
+	public int getTileIndex(int i) {
+		return tiles[2 * i];
+	}
+
+	public int getTileAppearance(int i) {
+		return tiles[2 * i + 1];
+	}
+
+	/** Records a tile change */
+	public void addTile(int tileIndex, int tileAppearance) {
+		tiles[2 * tilesCount] = tileIndex;
+		tiles[2 * tilesCount + 1] = tileAppearance;
+		tilesCount++;
+	}
+
+	private void ensureCapacity(int length) {
+		if (commandsLength + length > commands.length) {
+			int[] newCommands = new int[2 * commands.length];
+			System.arraycopy(commands, 0, newCommands, 0, commandsLength);
+			commands = newCommands;
+		}
+	}
+
+	private void add(int op, int frame, int x, int y) {
+		ensureCapacity(4);
+		commands[commandsLength++] = op;
+		commands[commandsLength++] = frame;
+		commands[commandsLength++] = x;
+		commands[commandsLength++] = y;
+	}
+
+	/** Records a stage sprite frame */
+	public void addSprite(int frame, int x, int y) {
+		add(OP_SPRITE, frame, x, y);
+	}
+
+	/** Records a villain frame, and its center used to point at it when off screen */
+	public void addVillain(int frame, int x, int y, int centerX, int centerY) {
+		add(OP_VILLAIN, frame, x, y);
+		ensureCapacity(2);
+		commands[commandsLength++] = centerX;
+		commands[commandsLength++] = centerY;
+	}
+
+	/** Records a string, x and y are its top left corner */
+	public void addText(String text, int x, int y) {
+		if (textsCount == texts.length) {
+			String[] newTexts = new String[2 * texts.length];
+			System.arraycopy(texts, 0, newTexts, 0, textsCount);
+			texts = newTexts;
+		}
+		texts[textsCount] = text;
+		add(OP_TEXT, textsCount++, x, y);
+	}
+
+	/**
+	 * Draws the characters as dots on a stage overview located at x, y, with
+	 * tileSize pixels per tile
+	 */
+	public void paintDots(Graphics g, int x, int y, int tileSize) {
+		g.setColor(0x00ff0000);
+		int i = 0;
+		while (i < commandsLength) {
+			int op = commands[i];
+			i += 4;
+			if (op == OP_VILLAIN) {
+				paintDot(g, x, y, tileSize, commands[i], commands[i + 1]);
+				i += 2;
+			}
+		}
+		if (hasHero) {
+			g.setColor(0x00ffffff);
+			paintDot(g, x, y, tileSize, heroCenterX, heroCenterY);
+		}
+	}
+
+	private void paintDot(Graphics g, int x, int y, int tileSize, int centerX, int centerY) {
+		g.fillRect(x + centerX * tileSize / LodeRunnerStage.SPRITE_WIDTH - tileSize / 2,
+				y + centerY * tileSize / LodeRunnerStage.SPRITE_HEIGHT - tileSize / 2, tileSize, tileSize);
+	}
+
+	/** Draws the recorded commands, in order */
+	public void replay(Graphics g, GameSprite sprites, GameFont font) {
+		int i = 0;
+		while (i < commandsLength) {
+			int op = commands[i];
+			int frame = commands[i + 1], x = commands[i + 2], y = commands[i + 3];
+			i += 4;
+			switch (op) {
+				case OP_SPRITE:
+					sprites.paint(g, frame, x, y);
+					break;
+				case OP_VILLAIN:
+					// Only a paning surface leaves villains off screen, else the sprite is merely out of the clip
+					if (!sprites.paint(g, frame, x, y) && g.isPaning()) {
+						LodeRunnerVillain.paintDirection(g, commands[i], commands[i + 1]);
+					}
+					i += 2;
+					break;
+				case OP_TEXT:
+					font.paintString(g, texts[frame], x, y);
+					break;
+			}
+		}
+	}
+}
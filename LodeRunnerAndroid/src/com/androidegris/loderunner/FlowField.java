@@ -0,0 +1,97 @@
+package com.androidegris.loderunner;
+
+/**
+ * Distance in moves from every tile of a stage to the hero's tile, for the
+ * villains to follow (see LodeRunnerStage.AI_FLOW_FIELD). Moves are the ones
+ * a villain can make as far as tiles are concerned: running, climbing
+ * ladders, hanging to ropes and falling.
+ *
+ * The distances are computed once for all villains by a breadth first search
+ * from the hero's tile, and only computed again when the hero has changed
+ * tile or when a tile has changed.
+ */
+class FlowField {
+
+	/** Distance of the tiles from where the hero can't be reached */
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	private final LodeRunnerStage stage;
+	private final int[] distances = new int[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+	/** Breadth first search queue of tile indexes */
+	private final int[] queue = new int[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+	/** Hero's tile and stage tiles version the distances were computed for */
+	private int heroTileIndex = -1;
+	private int tilesVersion = -1;
+
+	public FlowField(LodeRunnerStage stage) {
+		this.stage = stage;
+	}
+
+	/** Get the distance in moves from a given tile to the hero, UNREACHABLE if out of the stage or too far */
+	public int getDistance(int xTile, int yTile) {
+		if (xTile < 0 || xTile >= LodeRunnerStage.STAGE_WIDTH || yTile < 0 || yTile >= LodeRunnerStage.STAGE_HEIGHT) {
+			return UNREACHABLE;
+		}
+		update();
+		return distances[LodeRunnerStage.getTileIndex(xTile, yTile)];
+	}
+
+	/** Compute the distances again if the hero or the tiles have changed */
+	private void update() {
+		LodeRunnerHero hero = stage.hero;
+		if (hero == null) {
+			return;
+		}
+		int newHeroTileIndex = LodeRunnerStage.getTileIndex(hero.xTile, hero.yTile);
+		if (newHeroTileIndex == heroTileIndex && stage.tilesVersion == tilesVersion) {
+			return;
+		}
+		heroTileIndex = newHeroTileIndex;
+		tilesVersion = stage.tilesVersion;
+		for (int i = 0; i < distances.length; i++) {
+			distances[i] = UNREACHABLE;
+		}
+		// Walk the moves backwards, from the hero to every tile leading to him
+		int head = 0, tail = 0;
+		distances[heroTileIndex] = 0;
+		queue[tail++] = heroTileIndex;
+		while (head < tail) {
+			int tileIndex = queue[head++];
+			int xTile = tileIndex % LodeRunnerStage.STAGE_WIDTH;
+			int yTile = tileIndex / LodeRunnerStage.STAGE_WIDTH;
+			int distance = distances[tileIndex] + 1;
+			// Running right from the left tile, or left from the right tile
+			if (xTile > 0 && isPossible(xTile - 1, yTile, LodeRunnerStage.MASK_RUN_RIGHT)) {
+				tail = reach(tileIndex - 1, distance, tail);
+			}
+			if (xTile < LodeRunnerStage.STAGE_WIDTH - 1 && isPossible(xTile + 1, yTile, LodeRunnerStage.MASK_RUN_LEFT)) {
+				tail = reach(tileIndex + 1, distance, tail);
+			}
+			// Climbing up from the tile below
+			if (yTile < LodeRunnerStage.STAGE_HEIGHT - 1 && isPossible(xTile, yTile + 1, LodeRunnerStage.MASK_CLIMB_UP)) {
+				tail = reach(tileIndex + LodeRunnerStage.STAGE_WIDTH, distance, tail);
+			}
+			// Climbing or falling down from the tile above, villains never jump into holes
+			if (yTile > 0 && stage.getTile(xTile, yTile) != LodeRunnerStage.TILE_HOLE_EMPTY) {
+				int mask = stage.getMoveMask(xTile, yTile - 1);
+				if ((mask & (LodeRunnerStage.MASK_FALL | LodeRunnerStage.MASK_CLIMB_DOWN)) != 0) {
+					tail = reach(tileIndex - LodeRunnerStage.STAGE_WIDTH, distance, tail);
+				}
+			}
+		}
+	}
+
+	/** Is a move possible from a given tile? Falling characters can't do anything but fall. */
+	private boolean isPossible(int xTile, int yTile, int moveMask) {
+		int mask = stage.getMoveMask(xTile, yTile);
+		return (mask & LodeRunnerStage.MASK_FALL) == 0 && (mask & moveMask) != 0;
+	}
+
+	private int reach(int tileIndex, int distance, int tail) {
+		if (distances[tileIndex] == UNREACHABLE) {
+			distances[tileIndex] = distance;
+			queue[tail++] = tileIndex;
+		}
+		return tail;
+	}
+}
@@ -0,0 +1,94 @@
+package com.androidegris.loderunner;
+
+/**
+ * Paces the drawing thread on the repaint requests (see
+ * LodeRunnerDrawingThread.REPAINT_*). The drawing thread blocks until a
+ * repaint is requested, frames never start closer than the target frame
+ * period, and the pending repaint flags are handed over atomically. Requests
+ * made while a frame is already pending are merged into it.
+ */
+class FrameScheduler {
+
+	private int pendingRepaint = LodeRunnerDrawingThread.REPAINT_NONE;
+	private long framePeriodNanos;
+	private long lastFrameNanos = 0;
+	private boolean stopped = false;
+	private int framesRendered = 0;
+	private int framesSkipped = 0;
+
+	public FrameScheduler(int targetFrameRate) {
+		setTargetFrameRate(targetFrameRate);
+	}
+
+	public synchronized void setTargetFrameRate(int framesPerSecond) {
+		this.framePeriodNanos = 1000000000L / framesPerSecond;
+	}
+
+	/** Requests a repaint. Never blocks. */
+	public synchronized void requestRepaint(int repaint) {
+		if (pendingRepaint != LodeRunnerDrawingThread.REPAINT_NONE) {
+			// merged into the frame already pending
+			framesSkipped++;
+		}
+		pendingRepaint |= repaint;
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until a repaint is requested and the frame period has elapsed,
+	 * then takes the pending repaint flags.
+	 * 
+	 * @return repaint flags, REPAINT_NONE once stopped
+	 */
+	public synchronized int awaitRepaint() throws InterruptedException {
+		while (!stopped) {
+			if (pendingRepaint == LodeRunnerDrawingThread.REPAINT_NONE) {
+				wait();
+				continue;
+			}
+			long now = System.nanoTime();
+			long waitNanos = lastFrameNanos + framePeriodNanos - now;
+			if (waitNanos > 0) {
+				wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+				continue;
+			}
+			int repaint = pendingRepaint;
+			pendingRepaint = LodeRunnerDrawingThread.REPAINT_NONE;
+			lastFrameNanos = now;
+			return repaint;
+		}
+		return LodeRunnerDrawingThread.REPAINT_NONE;
+	}
+
+	/** Wakes up and releases the drawing thread */
+	public synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	public synchronized void start() {
+		stopped = false;
+	}
+
+	public synchronized void frameRendered() {
+		framesRendered++;
+	}
+
+	/** The repaint was requested, but there was nothing to draw */
+	public synchronized void frameSkipped() {
+		framesSkipped++;
+	}
+
+	public synchronized int getFramesRendered() {
+		return framesRendered;
+	}
+
+	public synchronized int getFramesSkipped() {
+		return framesSkipped;
+	}
+
+	public synchronized void resetCounters() {
+		framesRendered = 0;
+		framesSkipped = 0;
+	}
+}
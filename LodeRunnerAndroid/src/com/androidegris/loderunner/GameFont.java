@@ -4,16 +4,33 @@ package com.androidegris.loderunner;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.androidegris.loderunner.midp.Graphics;
+import com.androidegris.loderunner.midp.Image;
 
 /**
  * Game font using sprites as characters
  */
 class GameFont extends GameSprite {
 
+    /** Maximum number of pre-rendered strings kept in cache */
+    private static final int MAX_CACHED_STRINGS = 8;
+
     /** Characters represented by each frame of the sprite (in order) */
     private String characterSet;
+    /** Frame number for each character code, -1 if the character is not in the set */
+    private final int[] characterFrames = new int[128];
+    /** Strings already rendered, as single frame sprites, least recently painted first */
+    private final Map<String, GameSprite> cachedStrings = new LinkedHashMap<String, GameSprite>(2 * MAX_CACHED_STRINGS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, GameSprite> eldest) {
+            return size() > MAX_CACHED_STRINGS;
+        }
+    };
 
     /** Constructor from a resource name and a character set */
     public GameFont(InputStream inputStream, int frameWidth, int frameHeight, String characterSet) throws IOException {
@@ -22,12 +39,28 @@ class GameFont extends GameSprite {
         if (characterSet.length() != framesCount) {
             throw new IllegalArgumentException();
         }
+        Arrays.fill(characterFrames, -1);
+        for (int i = 0; i < characterSet.length(); i++) {
+            char c = characterSet.charAt(i);
+            if (c < characterFrames.length) {
+                characterFrames[c] = i;
+            }
+        }
     }
 
-    /** Draw a character string, using this font */
-    public void drawString(Graphics g, String str, int x, int y, int anchor) {
-        int strLength = str.length();
-        if (strLength == 0) {
+    /** Get the frame number of a character, -1 if there is none */
+    private int getCharacterFrame(char c) {
+        return c < characterFrames.length ? characterFrames[c] : -1;
+    }
+
+    /** Get the width in pixels of a string */
+    private int getStringWidth(String str) {
+        return (frameWidth + 1) * str.length() - 1;
+    }
+
+    /** Record the drawing of a character string, using this font */
+    public void drawString(DisplayList list, String str, int x, int y, int anchor) {
+        if (str.length() == 0) {
             return;
         }
         // Adjust position according to anchor
@@ -37,17 +70,28 @@ class GameFont extends GameSprite {
             y -= frameHeight / 2;
         }
         if ((anchor & Graphics.RIGHT) != 0) {
-            x -= (frameWidth + 1) * strLength - 1;
+            x -= getStringWidth(str);
         } else if ((anchor & Graphics.HCENTER) != 0) {
-            x -= ((frameWidth + 1) * strLength - 1) / 2;
+            x -= getStringWidth(str) / 2;
         }
-        // Draw each character
-        for (int i = 0; i < strLength; i++) {
-            int frameNumber = characterSet.indexOf(str.charAt(i));
-            if (frameNumber >= 0) {
-                paint(g, frameNumber, x, y);
+        list.addText(str, x, y);
+    }
+
+    /** Paint a character string at its top left position, rendering it once while it stays in cache */
+    public void paintString(Graphics g, String str, int x, int y) {
+        GameSprite renderedString = cachedStrings.get(str);
+        if (renderedString == null) {
+            Image image = Image.createTransparentImage(getStringWidth(str), frameHeight);
+            // Draw each character
+            for (int i = 0; i < str.length(); i++) {
+                int frameNumber = getCharacterFrame(str.charAt(i));
+                if (frameNumber >= 0) {
+                    paint(image.getGraphics(), frameNumber, i * (frameWidth + 1), 0);
+                }
             }
-            x += frameWidth + 1;
+            renderedString = new GameSprite(image, image.getWidth(), frameHeight, 0, 0);
+            cachedStrings.put(str, renderedString);
         }
+        renderedString.paint(g, 0, x, y);
     }
 }
@@ -8,10 +8,6 @@ import java.io.InputStream;
 import com.androidegris.loderunner.midp.Graphics;
 import com.androidegris.loderunner.midp.Image;
 
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-
 /**
  * Visual element that can be rendered with one of the frames stored in an Image.
  * 
@@ -29,6 +25,8 @@ class GameSprite {
     public int framesCountX, framesCountY;
     /** Origin within each frame in pixels */
     public int refX, refY;
+    /** Frames sliced from the image (built on demand) */
+    private Image[] slicedFrames;
 
     /** Constructor from a given Image */
     public GameSprite(Image image, int frameWidth, int frameHeight, int refX, int refY) {
@@ -39,6 +37,7 @@ class GameSprite {
         this.framesCountX = image.getWidth() / frameWidth;
         this.framesCountY = image.getHeight() / frameHeight;
         this.framesCount = framesCountX * framesCountY;
+        this.slicedFrames = new Image[framesCount];
         frames = image;
     }
 
@@ -47,6 +46,20 @@ class GameSprite {
     	this(Image.createImage(inputStream), frameWidth, frameHeight, refX, refY);
     }
 
+    /**
+     * Get a given frame, sliced from the image. Frames are cached, so each one is sliced once.
+     * Frames are never resized: the stage is painted at its native resolution, then resized at once.
+     */
+    private Image getFrame(int frameNumber) {
+        Image frame = slicedFrames[frameNumber];
+        if (frame == null) {
+            frame = frames.getRegion((frameNumber % framesCountX) * frameWidth, (frameNumber / framesCountX) * frameHeight,
+                    frameWidth, frameHeight);
+            slicedFrames[frameNumber] = frame;
+        }
+        return frame;
+    }
+
 	/** Paint a given frame of this sprite at a given position in pixels */
     public final boolean paint(Graphics g, int frameNumber, int x, int y) {
         x -= refX;
@@ -57,8 +70,7 @@ class GameSprite {
         if (x + frameWidth < cx || y + frameHeight < cy || x > cx + cw || y > cy + ch) {
             return false;
         }
-        g.drawRegion(frames, (frameNumber % framesCountX) * frameWidth, (frameNumber / framesCountX) * frameHeight,
-                frameWidth, frameHeight, 0, x, y, Graphics.TOP | Graphics.LEFT);
+        g.drawFrame(getFrame(frameNumber), x, y);
         return true;
     }
 
@@ -77,10 +89,4 @@ class GameSprite {
         }
         return paint(g, frameNumber, x, y);
     }
-
-	public Drawable getTile(int frameNumber) {
-		Bitmap bitmap = frames.getBitmap((frameNumber % framesCountX) * frameWidth, (frameNumber / framesCountX) * frameHeight,
-                frameWidth, frameHeight);
-		return new BitmapDrawable(bitmap);
-	}
 }
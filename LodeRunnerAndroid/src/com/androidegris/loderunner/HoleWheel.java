@@ -0,0 +1,118 @@
+package com.androidegris.loderunner;
+
+/**
+ * Holes dug into a Lode Runner game stage, waiting to be refilled.
+ *
+ * Holes are stored as primitive records (tile index, dig tick) in a timer
+ * wheel: one slot per refill tick, each slot holding a linked list of the
+ * holes to refill at that tick, in digging order. Refills are found without
+ * looking at the other holes, and nothing is allocated.
+ */
+class HoleWheel {
+
+	/** Delay in heartbeats before refill */
+	public static final int DELAY_REFILL = 96;
+	/** Delay in heartbeats before refilling becomes visible */
+	public static final int DELAY_VISIBLE_REFILL = 2;
+	/** Number of slots, more than DELAY_REFILL so that a slot only holds holes of a single refill tick */
+	private static final int SLOTS = 128;
+	/** A stage can't have more holes than tiles */
+	private static final int MAX_HOLES = LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT;
+
+	/** Lode Runner stage where the holes are dug */
+	private final LodeRunnerStage stage;
+	/** Number of heartBeats since the stage was loaded */
+	private int tick;
+	/** First and last hole of each slot, -1 if none */
+	private final int[] slotFirst = new int[SLOTS];
+	private final int[] slotLast = new int[SLOTS];
+	/** Hole records: tile index, tick when dug, next hole in the same slot (or in the free list) */
+	private final int[] holeTileIndex = new int[MAX_HOLES];
+	private final int[] holeDigTick = new int[MAX_HOLES];
+	private final int[] holeNext = new int[MAX_HOLES];
+	/** First free hole record, -1 if none */
+	private int free;
+
+	public HoleWheel(LodeRunnerStage stage) {
+		this.stage = stage;
+		clear();
+	}
+
+	/** Forget every hole */
+	public synchronized void clear() {
+		tick = 0;
+		for (int i = 0; i < SLOTS; i++) {
+			slotFirst[i] = -1;
+			slotLast[i] = -1;
+		}
+		for (int i = 0; i < MAX_HOLES; i++) {
+			holeNext[i] = i + 1;
+		}
+		holeNext[MAX_HOLES - 1] = -1;
+		free = 0;
+	}
+
+	/** Keep track of a dug hole, for delayed refill */
+	public synchronized void add(int tileIndex) {
+		int hole = free;
+		free = holeNext[hole];
+		holeTileIndex[hole] = tileIndex;
+		holeDigTick[hole] = tick;
+		holeNext[hole] = -1;
+		// Appended, so that holes are refilled in digging order
+		int slot = (tick + DELAY_REFILL) % SLOTS;
+		if (slotLast[slot] < 0) {
+			slotFirst[slot] = hole;
+		} else {
+			holeNext[slotLast[slot]] = hole;
+		}
+		slotLast[slot] = hole;
+	}
+
+	/** Number of heartBeats before a hole will refill */
+	private int getDelayBusy(int hole) {
+		return holeDigTick[hole] + DELAY_REFILL - tick;
+	}
+
+	/** Heartbeat for every hole: refill the holes that are due */
+	public synchronized void heartBeat() {
+		int slot = tick % SLOTS;
+		int hole = slotFirst[slot];
+		slotFirst[slot] = -1;
+		slotLast[slot] = -1;
+		while (hole >= 0) {
+			int tileIndex = holeTileIndex[hole];
+			stage.setTile(tileIndex % LodeRunnerStage.STAGE_WIDTH, tileIndex / LodeRunnerStage.STAGE_WIDTH, LodeRunnerStage.TILE_BRICK);
+			int next = holeNext[hole];
+			holeNext[hole] = free;
+			free = hole;
+			hole = next;
+		}
+		tick++;
+		// Refilling is visible
+		for (int delayBusy = 0; delayBusy < 2 * DELAY_VISIBLE_REFILL; delayBusy++) {
+			for (hole = slotFirst[(tick + delayBusy) % SLOTS]; hole >= 0; hole = holeNext[hole]) {
+				int tileIndex = holeTileIndex[hole];
+				stage.dirtyRegion.addTile(tileIndex % LodeRunnerStage.STAGE_WIDTH, tileIndex / LodeRunnerStage.STAGE_WIDTH);
+			}
+		}
+	}
+
+	/** Record the rendering of the holes being refilled */
+	public synchronized void record(DisplayList list) {
+		for (int delayBusy = 0; delayBusy < 2 * DELAY_VISIBLE_REFILL; delayBusy++) {
+			for (int hole = slotFirst[(tick + delayBusy) % SLOTS]; hole >= 0; hole = holeNext[hole]) {
+				int frameHole = 0;
+				if (getDelayBusy(hole) < DELAY_VISIBLE_REFILL) {
+					frameHole = 75;
+				}
+				if (getDelayBusy(hole) < 2 * DELAY_VISIBLE_REFILL) {
+					frameHole = 74;
+				}
+				int tileIndex = holeTileIndex[hole];
+				list.addSprite(frameHole, (tileIndex % LodeRunnerStage.STAGE_WIDTH) * LodeRunnerStage.SPRITE_WIDTH,
+						(tileIndex / LodeRunnerStage.STAGE_WIDTH) * LodeRunnerStage.SPRITE_HEIGHT);
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.androidegris.loderunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Every level of the levels resource file, read once and kept in memory.
+ *
+ * In the original Apple II version, the levels can be found at offset
+ * 0x3000-0xc600 (aligned on 0x100 bytes blocks), in "loderunner.dsk" and
+ * "ch_lode.dsk". "LodeRunner.bin" contains the usefull extracts of those two
+ * files (without the alignment to save more space in the jar archive). Each
+ * level takes LodeRunnerStage.LEVEL_SIZE bytes, each tile is encoded on 4 bits.
+ *
+ * Any level is then copied out of memory, without any I/O.
+ */
+public class LevelStore {
+
+	/** Levels, one after the other */
+	private final ByteBuffer levels;
+
+	/** Read every level from a stream, which is read to its end and closed */
+	public LevelStore(InputStream inputStream) throws IOException {
+		byte[] bytes = new byte[LodeRunnerStage.LEVEL_SIZE * LodeRunnerStage.MAX_LEVELS];
+		int length = 0;
+		try {
+			int read;
+			while ((read = inputStream.read(bytes, length, bytes.length - length)) >= 0) {
+				length += read;
+				if (length == bytes.length) {
+					byte[] newBytes = new byte[2 * bytes.length];
+					System.arraycopy(bytes, 0, newBytes, 0, length);
+					bytes = newBytes;
+				}
+			}
+		} finally {
+			inputStream.close();
+		}
+		// Keep no more than the levels (Arrays.copyOf needs API level 9)
+		if (length < bytes.length) {
+			byte[] newBytes = new byte[length];
+			System.arraycopy(bytes, 0, newBytes, 0, length);
+			bytes = newBytes;
+		}
+		levels = ByteBuffer.wrap(bytes);
+	}
+
+	/** Keep levels already in memory */
+	public LevelStore(byte[] bytes) {
+		levels = ByteBuffer.wrap(bytes);
+	}
+
+	private LevelStore(ByteBuffer levels) {
+		this.levels = levels;
+	}
+
+	/** Map a levels file in memory, rather than reading it */
+	public static LevelStore map(File file) throws IOException {
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			FileChannel channel = inputStream.getChannel();
+			return new LevelStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/** Get the number of levels */
+	public int getLevelCount() {
+		return levels.capacity() / LodeRunnerStage.LEVEL_SIZE;
+	}
+
+	/** Copy a given level into a buffer of LodeRunnerStage.LEVEL_SIZE bytes */
+	public void getLevel(int level, byte[] buffer) {
+		if (level < 0 || level >= getLevelCount()) {
+			throw new IndexOutOfBoundsException("No level " + level);
+		}
+		// Positions are not shared between threads
+		ByteBuffer levelBuffer = levels.duplicate();
+		levelBuffer.position(level * LodeRunnerStage.LEVEL_SIZE);
+		levelBuffer.get(buffer, 0, LodeRunnerStage.LEVEL_SIZE);
+	}
+
+	/** Get a copy of a given level */
+	public byte[] getLevel(int level) {
+		byte[] buffer = new byte[LodeRunnerStage.LEVEL_SIZE];
+		getLevel(level, buffer);
+		return buffer;
+	}
+}
@@ -3,6 +3,8 @@ package com.androidegris.loderunner;
 import com.androidegris.loderunner.errorhandling.ExceptionHandler;
 import com.androidegris.loderunner.managers.GameManager;
 import com.androidegris.loderunner.managers.ViewManager;
+import com.androidegris.loderunner.midp.CanvasImage;
+import com.androidegris.loderunner.midp.Image;
 
 import android.app.Activity;
 import android.content.pm.ActivityInfo;
@@ -24,6 +26,8 @@ public class LodeRunnerActivity extends Activity {
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		Thread.setDefaultUncaughtExceptionHandler(new ExceptionHandler(this));
+		// game images are Android bitmaps
+		Image.setFactory(CanvasImage.FACTORY);
 		setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
 
 		Log.i(LodeRunnerActivity.class.getCanonicalName(), "onCreate");
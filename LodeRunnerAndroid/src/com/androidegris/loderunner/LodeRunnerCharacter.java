@@ -1,6 +1,5 @@
 package com.androidegris.loderunner;
 
-import com.androidegris.loderunner.midp.Graphics;
 
 /* Copyright � 2006 - Fabien GIGANTE */
 
@@ -48,6 +47,12 @@ public abstract class LodeRunnerCharacter {
         nChests = 0;
     }
 
+    /** Make this character as new, at a given tile index (characters are reused from one stage to the next) */
+    public void reset(int tileIndex) {
+        nChests = 0;
+        moveToTile(tileIndex);
+    }
+
     /** Position this character at a given tile index */
     public void moveToTile(int tileIndex) {
         xTile = tileIndex % LodeRunnerStage.STAGE_WIDTH;
@@ -165,16 +170,8 @@ public abstract class LodeRunnerCharacter {
     /** Check if this character should fall */
     protected boolean shouldFall() {
         // Don't fall if inside a brick (ouch!), on a ladder or hung to a rope
-        int currentType = stage.getTileBehavior(xTile, yTile);
-        if (currentType == LodeRunnerStage.TILE_BRICK || currentType == LodeRunnerStage.TILE_LADDER || currentType == LodeRunnerStage.TILE_ROPE) {
-            return false;
-        }
         // Don't fall if standing on brick, or concrete, or at the top of a ladder
-        int bottomType = stage.getTileBehavior(xTile, yTile + 1);
-        if (bottomType == LodeRunnerStage.TILE_BRICK || bottomType == LodeRunnerStage.TILE_CONCRETE || bottomType == LodeRunnerStage.TILE_LADDER) {
-            return false;
-        }
-        return true;
+        return (stage.getMoveMask(xTile, yTile) & LodeRunnerStage.MASK_FALL) != 0;
     }
 
     /** Get the exact reverse of this character's current move, if reversible */
@@ -195,29 +192,21 @@ public abstract class LodeRunnerCharacter {
 
     /** Check if this character can perform a given move */
     protected boolean isPossibleMove(int move) {
+        int mask = stage.getMoveMask(xTile, yTile);
         switch (move) {
-            case MOVE_RUN_LEFT: {
+            case MOVE_RUN_LEFT:
                 // Can't run into brick, trap or concrete
-                int nextType = stage.getTileBehavior(xTile - 1, yTile);
-                return (nextType != LodeRunnerStage.TILE_BRICK && nextType != LodeRunnerStage.TILE_TRAP && nextType != LodeRunnerStage.TILE_CONCRETE);
-            }
-            case MOVE_RUN_RIGHT: {
+                return (mask & LodeRunnerStage.MASK_RUN_LEFT) != 0;
+            case MOVE_RUN_RIGHT:
                 // Can't run into brick, trap or concrete
-                int nextType = stage.getTileBehavior(xTile + 1, yTile);
-                return (nextType != LodeRunnerStage.TILE_BRICK && nextType != LodeRunnerStage.TILE_TRAP && nextType != LodeRunnerStage.TILE_CONCRETE);
-            }
-            case MOVE_CLIMB_UP: {
+                return (mask & LodeRunnerStage.MASK_RUN_RIGHT) != 0;
+            case MOVE_CLIMB_UP:
                 // Need a ladder to climb up. Can't climb up into brick, trap or concrete
-                int curType = stage.getTileBehavior(xTile, yTile);
-                int nextType = stage.getTileBehavior(xTile, yTile - 1);
-                return (curType == LodeRunnerStage.TILE_LADDER && nextType != LodeRunnerStage.TILE_BRICK && nextType != LodeRunnerStage.TILE_TRAP && nextType != LodeRunnerStage.TILE_CONCRETE);
-            }
-            case MOVE_CLIMB_DOWN: {
+                return (mask & LodeRunnerStage.MASK_CLIMB_UP) != 0;
+            case MOVE_CLIMB_DOWN:
                 // This move can also be used to force this character to fall (eg. from a rope)
                 // Can't climb down (or fall down) into brick or concrete (but trap is OK).
-                int nextType = stage.getTileBehavior(xTile, yTile + 1);
-                return (nextType != LodeRunnerStage.TILE_BRICK && nextType != LodeRunnerStage.TILE_CONCRETE);
-            }
+                return (mask & LodeRunnerStage.MASK_CLIMB_DOWN) != 0;
             default:
                 return false;
         }
@@ -306,6 +295,11 @@ public abstract class LodeRunnerCharacter {
         }
     }
 
+    /** Mark the area where this character is rendered as changed */
+    protected void markDirty() {
+        stage.dirtyRegion.add(getX(), getY(), LodeRunnerStage.SPRITE_WIDTH, LodeRunnerStage.SPRITE_HEIGHT);
+    }
+
     /** Kill this character */
     abstract protected void kill();
 
@@ -325,9 +319,12 @@ public abstract class LodeRunnerCharacter {
      *       canChangeTile()
      */
     public void heartBeat() {
+        // Area rendered before this heartBeat will change (frame or position)
+        markDirty();
         // If this character is inside plain brick, he should die
         if (stage.getTileBehavior(xTile, yTile) == LodeRunnerStage.TILE_BRICK) {
             kill();
+            markDirty();
             return;
         }
         // Decrease (if any) the number of heartBeats before this character can move again
@@ -341,11 +338,12 @@ public abstract class LodeRunnerCharacter {
         }
         // Compute new position
         computeNewPosition();
+        markDirty();
     }
 
-    /** Render this character */
-    public boolean paint(Graphics g) {
+    /** Record the rendering of this character */
+    public void record(DisplayList list) {
         // Paint appropriate sprite
-        return stage.sprites.paint(g, getFrame(), getX(), getY());
+        list.addSprite(getFrame(), getX(), getY());
     }
 }
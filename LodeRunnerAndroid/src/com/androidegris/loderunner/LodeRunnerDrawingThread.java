@@ -1,19 +1,22 @@
 package com.androidegris.loderunner;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Timer;
 
 import com.androidegris.loderunner.R;
 import com.androidegris.loderunner.errorhandling.TimerTaskWithExceptionHandler;
 import com.androidegris.loderunner.listeners.LevelInfoChangedListener;
 import com.androidegris.loderunner.listeners.PauseRequestedListener;
+import com.androidegris.loderunner.listeners.StageLoadedListener;
+import com.androidegris.loderunner.midp.CanvasGraphics;
 import com.androidegris.loderunner.midp.Graphics;
+import com.androidegris.loderunner.midp.Image;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.util.Log;
 import android.view.SurfaceHolder;
 
@@ -25,7 +28,9 @@ public class LodeRunnerDrawingThread extends Thread {
 	private static final String MSG_TRY_AGAIN = "Try again...";
 	private static final String MSG_GAME_OVER = "Game Over (Just kidding)";
 	private static final String MSG_CONGRATS = "Congratulations!";
-	private Graphics g = new Graphics();
+	private CanvasGraphics g = new CanvasGraphics();
+	/** Stage rendered at its native resolution, then resized to the surface at once */
+	private Image stageImage = null;
 	private LevelInfoChangedListener levelInfoChangedListener;
 	private PauseRequestedListener pauseRequestedListener;
 	private boolean running;
@@ -45,13 +50,17 @@ public class LodeRunnerDrawingThread extends Thread {
 	protected static final int REPAINT_KEY = 2;
 	/** Full repaint is needed, display must be rendered again entirely */
 	protected static final int REPAINT_ALL = 3;
-	/** Tells the animation threads what elements should be rendered again */
-	protected volatile int needsRepaint;
+	/** Tells the animation thread when and what elements should be rendered again */
+	private final FrameScheduler frameScheduler = new FrameScheduler(1000 / FRAMERATE_MILLISEC);
+	/** Stage area changed by the display list of the current frame, as {left, top, right, bottom} in stage pixels */
+	private final int[] dirtyBounds = new int[4];
+	/** Surface area locked for the current frame */
+	private final Rect dirtyRect = new Rect();
+	/** Game ticks dropped by the game loop because the device was too busy */
+	private volatile long missedTicks = 0;
 
 	/** Game name use for store persistence */
 	private static final String GAME_NAME = "LodeRunner";
-	/** Game splash screen */
-	private GameSprite splashScreen = null;
 
 	/**
 	 * Maximum number of lives given to the player when starting the game
@@ -64,13 +73,13 @@ public class LodeRunnerDrawingThread extends Thread {
 	public int level = 0;
 	/** Current stage, when game is in progress */
 	private LodeRunnerStage stage = null;
+	/** Every level, read once */
+	private final LevelStore levelStore;
 
 	private byte[] levelStatuses = new byte[LodeRunnerStage.MAX_LEVELS];
 
 	private static final byte STATUS_DONE = 1;
 	private static final byte STATUS_NOT_DONE = 0;
-	private int w0;
-	private int h0;
 
 	private int width;
 	private int height;
@@ -95,29 +104,97 @@ public class LodeRunnerDrawingThread extends Thread {
 		this.holder = holder;
 		InputStream fontInputStream = this.context.getResources().openRawResource(R.raw.font);
 		InputStream tilesInputStream = this.context.getResources().openRawResource(R.raw.tiles12x11);
-		stage = new LodeRunnerStage(fontInputStream, tilesInputStream, this);		
+		stage = new LodeRunnerStage(fontInputStream, tilesInputStream);
+		stage.setStageLoadedListener(new StageLoadedListener() {
+			public void stageLoaded() {
+				requestRepaint(REPAINT_ALL);
+			}
+		});
+		try {
+			levelStore = new LevelStore(this.context.getResources().openRawResource(R.raw.loderunnerbin));
+		} catch (IOException e) {
+			Log.e(LodeRunnerDrawingThread.class.getCanonicalName(), "Error reading levels", e);
+			throw new RuntimeException(e);
+		}
 		recoverStatus();
-		stage.loadFromResource(openBinInputStream(), level);
+		stage.loadFromStore(levelStore, level);
+		prefetchNextLevel();
 	}
 
-	private InputStream openBinInputStream() {
-		return this.context.getResources().openRawResource(R.raw.loderunnerbin);
+	/** Decode ahead of time the level loaded once the current one is completed (see stageOver) */
+	private void prefetchNextLevel() {
+		stage.prefetch(levelStore, (level + 1) % LodeRunnerStage.MAX_LEVELS);
 	}
 
 
 	public void setRunning(boolean running) {
 		this.running = running;
+		if (running) {
+			frameScheduler.start();
+			// a new surface has no content yet
+			requestRepaint(REPAINT_ALL);
+		} else {
+			frameScheduler.stop();
+		}
+	}
+
+	/** Asks the animation thread for a repaint, see REPAINT_* */
+	public void requestRepaint(int repaint) {
+		frameScheduler.requestRepaint(repaint);
+	}
 
+	public void setTargetFrameRate(int framesPerSecond) {
+		frameScheduler.setTargetFrameRate(framesPerSecond);
+	}
+
+	/**
+	 * Computes the surface area to draw again: the stage area changed by the
+	 * display list about to be painted, scaled to the surface, or null for
+	 * the whole surface.
+	 * 
+	 * @return dirtyRect, null or an empty rect if nothing has changed
+	 */
+	private Rect computeDirtyRect(int repaint, DisplayList list) {
+		boolean changed = list.getDirtyBounds(dirtyBounds);
+		boolean repaintAll = repaint == REPAINT_ALL;
+		// when paning, the whole stage moves along with the hero
+		if (repaintAll || paning) {
+			return null;
+		}
+		if (!changed) {
+			dirtyRect.setEmpty();
+			return dirtyRect;
+		}
+		// one more pixel, positions are rounded when drawing resized frames
+		dirtyRect.set((int) (dirtyBounds[0] * scale), (int) (dirtyBounds[1] * scale), (int) (dirtyBounds[2] * scale) + 1,
+				(int) (dirtyBounds[3] * scale) + 1);
+		return dirtyRect;
 	}
 
 	@Override
 	public void run() {
 		while (running) {
+			int repaint = REPAINT_NONE;
+			try {
+				repaint = frameScheduler.awaitRepaint();
+			} catch (InterruptedException e) {
+				Log.e(LodeRunnerDrawingThread.class.getCanonicalName(), "Interrupted while waiting for a repaint", e);
+			}
+			if (repaint == REPAINT_NONE) {
+				continue;
+			}
+			DisplayList list = stage.acquireDisplayList();
+			Rect dirty = computeDirtyRect(repaint, list);
+			if (dirty != null && dirty.isEmpty()) {
+				frameScheduler.frameSkipped();
+				continue;
+			}
+			frameScheduler.frameRendered();
 			Canvas canvas = null;
 			try {
-				canvas = holder.lockCanvas(null);
+				canvas = holder.lockCanvas(dirty);
 				synchronized (holder) {
-					doDraw(canvas);
+					doDraw(canvas, list, dirty == null);
 				}
 			} finally {
 				// do this in a finally so that if an exception is thrown
@@ -130,82 +207,33 @@ public class LodeRunnerDrawingThread extends Thread {
 		}
 	}
 
-	private void doDraw(Canvas canvas) {
+	private void doDraw(Canvas canvas, DisplayList list, boolean repaintAll) {
 		g.setCanvas(canvas);
-		g.setScale(scale);
 		g.setPaning(paning);
-		stage.paint(g);
-	}
-
-	/** Render the message or splash screen */
-	private void paintMessage(Graphics g, int w, int h) {
-		// There is no message to render
-		if (splashScreen != null) {
-			if ((level / LodeRunnerStage.GAME_LEVELS) % 2 == 0) {
-				// Lode Runner splash screen
-				splashScreen.paint(g, 0, w / 2, h / 2, Graphics.HCENTER | Graphics.VCENTER);
-			} else {
-				// Championship splash screen
-				splashScreen.paint(g, 0, w / 2, h / 2 - 6, Graphics.HCENTER | Graphics.VCENTER);
-				splashScreen.paint(g, 1, w / 2, h / 2 + 6, Graphics.HCENTER | Graphics.VCENTER);
-			}
+		if (paning) {
+			// the surface is smaller than the stage, no resizing at all
+			stage.paint(g, list);
+			// so players can see the part of the stage out of the screen
+			stage.paintMiniMap(g, canvas.getWidth() - LodeRunnerStage.MINI_MAP_WIDTH - 2, 2);
+			return;
 		}
-	}
-
-	boolean clearAfterPause = true;
-	
-
-	/** Render the game canvas */
-	public void paint(Graphics g) {
-		// Render the stage
-		if (stage != null) {
-			stage.paint(g);
-			if (isPaused || !stage.isLoaded) {
-				clearAfterPause = true;
-
-				// clean the stage
-				w0 = g.getClipWidth();
-				h0 = g.getClipHeight();
-				g.setColor(0x000000);
-				g.fillRect(0, 0, w0, h0);
-
-				// Render the stage mini-map
-				//stage.spriteSize = LodeRunnerStage.SPRITE_SMALL;
-				//stage.paint(g);
-
-				int cx = LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.SPRITE_WIDTH;
-				int cy = LodeRunnerStage.STAGE_HEIGHT * LodeRunnerStage.SPRITE_HEIGHT;
-				int x = (w0 - cx) / 2, y = (h0 - cy) / 2;
-				if (x > 10) {
-					x = 10;
-				}
-
-				// Render the message or splash screen
-				paintMessage(g, w0, y);
-				// Display game information
-				g.setColor(0x00ffffff);
-
-				if (!stage.isLoaded) {
-					g.setColor(0x00ffff00);
-					//g.drawString("Loading...", x + cx / 2, y + (cy - font.getHeight()) / 2, Graphics.TOP  | Graphics.HCENTER);
-					//g.setColor(0x001463af);
-					//g.drawString("� 2006 - Fabien GIGANTE", w0 / 2, h0 - 2, Graphics.HCENTER | Graphics.BOTTOM);
-				}
-
-			} else {
-				if (clearAfterPause) {
-					clearAfterPause = false;
-					g.setColor(0x000000);
-					g.fillRect(0, 0, getWidth(), getHeight());
-					g.setColor(0x00ffffff);
-				}
-				if (stage != null) {
-					g.setColor(0x00ffffff);
-				}
-			}
+		// render 1:1, whatever the number of sprites the resizing cost is the same
+		if (stageImage == null) {
+			stageImage = Image.createImage(LodeRunnerStage.STAGE_WIDTH_PIXELS, LodeRunnerStage.STAGE_HEIGHT_PIXELS);
+			repaintAll = true;
 		}
+		// the rest of the stage image is still up to date, only the changed area is painted again
+		Graphics stageGraphics = stageImage.getGraphics();
+		if (repaintAll) {
+			stageGraphics.setClip(0, 0, LodeRunnerStage.STAGE_WIDTH_PIXELS, LodeRunnerStage.STAGE_HEIGHT_PIXELS);
+		} else {
+			stageGraphics.setClip(dirtyBounds[0], dirtyBounds[1], dirtyBounds[2] - dirtyBounds[0], dirtyBounds[3] - dirtyBounds[1]);
+		}
+		stage.paint(stageGraphics, list);
+		g.drawScaledImage(stageImage, 0, 0, (int) (LodeRunnerStage.STAGE_WIDTH_PIXELS * scale),
+				(int) (LodeRunnerStage.STAGE_HEIGHT_PIXELS * scale));
 	}
-	
+
 	public void pauseRequest(String pauseMessage) {
 		this.pauseRequestedListener.pauseRequest(pauseMessage);
 	}
@@ -224,7 +252,7 @@ public class LodeRunnerDrawingThread extends Thread {
 		levelInfo.setLives(lives);
 		levelInfo.setCoinsPicked(stage.hero == null ? 0 : stage.hero.nChests);
 		levelInfo.setCoinsTotal(stage.nChests);
-		levelInfo.setVilains(stage.villains.size());
+		levelInfo.setVilains(stage.getVillainCount());
 		levelInfo.setDone(levelStatuses[level] == STATUS_DONE);
 		return levelInfo;
 	}
@@ -237,7 +265,8 @@ public class LodeRunnerDrawingThread extends Thread {
 	public void loadNewLevel(int newLevel) {
 		this.level = newLevel;
 		try {
-			this.stage.loadFromResource(openBinInputStream(), newLevel);
+			this.stage.loadFromStore(levelStore, newLevel);
+			prefetchNextLevel();
 			updateLevelInfo();
 		} catch (Exception e) {
 			Log.e(LodeRunnerDrawingThread.class.getCanonicalName(), "Error loading level", e);
@@ -261,95 +290,57 @@ public class LodeRunnerDrawingThread extends Thread {
 	}
 
 	/**
-	 * Game event tasks that require a display rendering refresh should inherit
-	 * from this class
+	 * Single game event task, running the hero, the villains and the holes
+	 * heartBeats in a fixed order. Ticks are counted against the clock, so
+	 * ticks late because the device is busy are caught up (up to
+	 * MAX_CATCH_UP_TICKS at once, the others are dropped and counted).
 	 */
-	protected class RepaintTask extends GameTask {
-		public RepaintTask(UncaughtExceptionHandler handler) {
-			super(handler);
-		}
-		/**
-		 * Triggered by the Timer. Ask the animation thread for a repaint (due
-		 * to timer).
-		 */
-		public void runWrapped() {
-			needsRepaint |= REPAINT_TIMER;
-		}
-	}
+	protected class GameLoopTask extends GameTask {
 
-	/**
-	 * Define the hero's heartBeat as a game event task.
-	 */
-	protected class HeroHeartbeatTask extends RepaintTask {
-		public HeroHeartbeatTask(UncaughtExceptionHandler handler) {
-			super(handler);
-		}
-
-		/** Scheduled every frame */
+		/** One tick per period (see LodeRunnerStage.tick) */
 		public final static int PERIOD = FRAMERATE_MILLISEC;
-
-		/** Heartbeat */
-		public void runWrapped() {
-			if (stage != null && stage.isLoaded && stage.hero != null) {
-				stage.hero.heartBeat();
-				if (stage.endCompleted) {
-					stageOver(true);
-				} else if (stage.endHeroDied) {
-					stageOver(false);
-				}
-			}
-			super.runWrapped();
-		}
-	}
-
-	/**
-	 * Define the villains' heartBeat as a game event task.
-	 */
-	protected class VillainsHeartbeatTask extends RepaintTask {
-
-		public VillainsHeartbeatTask(UncaughtExceptionHandler handler) {
+		/** Maximum number of ticks run at once to catch up */
+		public final static int MAX_CATCH_UP_TICKS = 4;
+		private final long periodNanos = PERIOD * 1000000L;
+		private long startNanos = -1;
+		/** Ticks run (or dropped) since the game loop started */
+		private long ticks = 0;
+
+		public GameLoopTask(UncaughtExceptionHandler handler) {
 			super(handler);
 		}
 
-		/** Scheduled every 2 frames */
-		public final static int PERIOD = 2 * FRAMERATE_MILLISEC;
-
-		/** Heartbeat */
+		/** Triggered by the Timer. Run the due ticks, then ask the animation thread for a repaint (due to timer). */
 		public void runWrapped() {
-			// Loop on every villain
-			if (stage != null && stage.isLoaded) {
-				for (LodeRunnerVillain lodeRunnerVillain : stage.villains) {
-					lodeRunnerVillain.heartBeat();
-				}
+			long now = System.nanoTime();
+			if (startNanos < 0) {
+				startNanos = now;
 			}
-			super.runWrapped();
-		
-		}
-	}
-
-	/**
-	 * Define the stage's heartBeat as a game event task.
-	 */
-	protected class StageHeartbeatTask extends RepaintTask {
-
-		public StageHeartbeatTask(UncaughtExceptionHandler handler) {
-			super(handler);
+			long dueTicks = (now - startNanos) / periodNanos + 1 - ticks;
+			if (dueTicks > MAX_CATCH_UP_TICKS) {
+				missedTicks += dueTicks - MAX_CATCH_UP_TICKS;
+				ticks += dueTicks - MAX_CATCH_UP_TICKS;
+				dueTicks = MAX_CATCH_UP_TICKS;
+			}
+			for (int i = 0; i < dueTicks; i++) {
+				tick();
+				ticks++;
+			}
+			stage.publishDisplayList();
+			requestRepaint(REPAINT_TIMER);
 		}
 
-		/** Scheduled every 2 frames */
-		public final static int PERIOD = 2 * FRAMERATE_MILLISEC;
-		List<LodeRunnerHole> holesClone = new ArrayList<LodeRunnerHole>();
-		/** Heartbeat */
-		public void runWrapped() {
-			// Loop on every hole
-			if (stage != null && stage.isLoaded) {
-				holesClone.clear();
-				holesClone.addAll(stage.holes);
-				for (LodeRunnerHole lodeRunnerHole : holesClone) {
-					lodeRunnerHole.heartBeat();
-				}
+		private void tick() {
+			if (stage == null) {
+				return;
+			}
+			stage.tick();
+			if (stage.endCompleted) {
+				stageOver(true);
+			} else if (stage.endHeroDied) {
+				Log.d(LodeRunnerDrawingThread.class.getCanonicalName(), "Hero killed");
+				stageOver(false);
 			}
-			super.runWrapped();		
 		}
 	}
 
@@ -402,10 +393,11 @@ public class LodeRunnerDrawingThread extends Thread {
 		}
 		// Load appropriate stage
 		try {
-			stage.loadFromResource(openBinInputStream(), level);
+			stage.loadFromStore(levelStore, level);
+			prefetchNextLevel();
 		} catch (Exception e) {
 		}
-		needsRepaint = REPAINT_ALL;
+		requestRepaint(REPAINT_ALL);
 		updateLevelInfo();
 		if (!isPaused) {
 			pauseRequest(pauseMessage);
@@ -428,7 +420,14 @@ public class LodeRunnerDrawingThread extends Thread {
 
 	public synchronized void pause() {
 		persistStatus();
-		needsRepaint = REPAINT_ALL;
+		// clip captures never allocate, queries above captures are the allocations saved
+		Log.d(LodeRunnerDrawingThread.class.getCanonicalName(), "clip queries: " + g.getClipQueries() + " clip captures: " + g.getClipCaptures());
+		g.resetClipCounters();
+		Log.d(LodeRunnerDrawingThread.class.getCanonicalName(), "frames rendered: " + frameScheduler.getFramesRendered() + " frames skipped: " + frameScheduler.getFramesSkipped());
+		frameScheduler.resetCounters();
+		Log.d(LodeRunnerDrawingThread.class.getCanonicalName(), "missed ticks: " + missedTicks);
+		missedTicks = 0;
+		requestRepaint(REPAINT_ALL);
 		isPaused = true;
 		if (timer != null) {
 			timer.cancel();
@@ -437,16 +436,13 @@ public class LodeRunnerDrawingThread extends Thread {
 	}
 
 	public synchronized void play() {
-		needsRepaint = REPAINT_ALL;
+		requestRepaint(REPAINT_ALL);
 		isPaused = false;
 		timer = new Timer();
 		levelStatuses[level] = STATUS_NOT_DONE;
 		
-		timer.schedule(new HeroHeartbeatTask(this.getUncaughtExceptionHandler()), 0, HeroHeartbeatTask.PERIOD);
-		// Schedule the villains' heartBeat
-		timer.schedule(new VillainsHeartbeatTask(this.getUncaughtExceptionHandler()), 0, VillainsHeartbeatTask.PERIOD);
-		// Schedule the stage's heartBeat
-		timer.schedule(new StageHeartbeatTask(this.getUncaughtExceptionHandler()), 0, StageHeartbeatTask.PERIOD);
+		// Schedule the hero's, villains' and stage's heartBeats
+		timer.schedule(new GameLoopTask(this.getUncaughtExceptionHandler()), 0, GameLoopTask.PERIOD);
 		updateLevelInfo();
 	}
 
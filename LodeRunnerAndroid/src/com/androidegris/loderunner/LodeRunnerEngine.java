@@ -0,0 +1,109 @@
+package com.androidegris.loderunner;
+
+/**
+ * Lode Runner game without rendering nor Android, for simulations and
+ * regression tests on a plain JVM.
+ *
+ * A stage is built from a level's bytes (see LodeRunnerStage.LEVEL_SIZE) and
+ * a random seed, then runs one tick at a time, as fast as asked. Given the
+ * same level, seed and moves, the game always goes the same way.
+ */
+public class LodeRunnerEngine {
+
+	private final LodeRunnerStage stage = new LodeRunnerStage();
+
+	/** Build the stage of a level, villains in the villain pool if asked (see LodeRunnerStage.useVillainPool) */
+	public LodeRunnerEngine(byte[] level, long seed, boolean useVillainPool) {
+		stage.useVillainPool = useVillainPool;
+		stage.loadFromBytes(level, seed);
+	}
+
+	public LodeRunnerEngine(byte[] level, long seed) {
+		this(level, seed, false);
+	}
+
+	/** Select the villain AI (see LodeRunnerStage.AI_CLASSIC and LodeRunnerStage.AI_FLOW_FIELD) */
+	public void setVillainAi(int villainAi) {
+		stage.villainAi = villainAi;
+	}
+
+	/** Request the hero to perform a given move (see LodeRunnerHero.MOVE_* move constants) */
+	public void requestMove(int move) {
+		if (stage.hero != null) {
+			stage.hero.requestMove(move);
+		}
+	}
+
+	/** Run one game tick (see LodeRunnerStage.tick) */
+	public void tick() {
+		stage.tick();
+	}
+
+	/** Run game ticks until the stage is over, at most a given number. Returns the number of ticks run. */
+	public int run(int maxTicks) {
+		int ticks = 0;
+		while (ticks < maxTicks && !isOver()) {
+			stage.tick();
+			ticks++;
+		}
+		return ticks;
+	}
+
+	public int getTicks() {
+		return stage.getTicks();
+	}
+
+	public boolean isOver() {
+		return stage.endCompleted || stage.endHeroDied;
+	}
+
+	public boolean isCompleted() {
+		return stage.endCompleted;
+	}
+
+	public boolean isHeroDead() {
+		return stage.endHeroDied;
+	}
+
+	/** Get the tile type at a given position (see LodeRunnerStage.TILE_* tile constants) */
+	public int getTile(int xTile, int yTile) {
+		return stage.getTile(xTile, yTile);
+	}
+
+	/** Get the hero's tile index (see LodeRunnerStage.getTileIndex), -1 if there is no hero */
+	public int getHeroTileIndex() {
+		LodeRunnerHero hero = stage.hero;
+		return hero == null ? -1 : LodeRunnerStage.getTileIndex(hero.xTile, hero.yTile);
+	}
+
+	/** Get the hero's center position, in pixels */
+	public int getHeroCenterX() {
+		LodeRunnerHero hero = stage.hero;
+		return hero == null ? -1 : hero.getCenterX();
+	}
+
+	public int getHeroCenterY() {
+		LodeRunnerHero hero = stage.hero;
+		return hero == null ? -1 : hero.getCenterY();
+	}
+
+	/** Get the number of chests taken by the hero */
+	public int getChestsTaken() {
+		LodeRunnerHero hero = stage.hero;
+		return hero == null ? 0 : hero.nChests;
+	}
+
+	/** Get the total number of chests of the stage */
+	public int getChestsTotal() {
+		return stage.nChests;
+	}
+
+	public int getVillainCount() {
+		return stage.getVillainCount();
+	}
+
+	/** Is there a villain at a given tile? */
+	public boolean isVillainAt(int xTile, int yTile) {
+		return stage.isVilainAt(xTile, yTile);
+	}
+}
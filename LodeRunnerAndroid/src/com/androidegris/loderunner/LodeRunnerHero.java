@@ -2,8 +2,6 @@ package com.androidegris.loderunner;
 
 import com.androidegris.loderunner.midp.Graphics;
 
-import android.util.Log;
-
 /* Copyright � 2006 - Fabien GIGANTE */
 
 
@@ -20,6 +18,8 @@ public class LodeRunnerHero extends LodeRunnerCharacter {
     public static final int MOVE_DIG_RIGHT = 8;
     /** Move type constant for digging */
     public static final int MOVE_DIG = 9;    
+    /** Sprite key frames of the hero (see LodeRunnerCharacter.getFrame) */
+    private static final int[] keyFrames = {23, 6, 0, 6};
     /** Delay in heartbeats of floating messages */
     private static final int DELAY_MESSAGE = 12;
     /** Number of heartBeats before the floating message disappear */
@@ -27,12 +27,22 @@ public class LodeRunnerHero extends LodeRunnerCharacter {
     /** Current floating message text */
     private String currentMessage;
     private boolean wasShowingMessage;
+    /** Chests count messages ("taken/total") already built, indexed by the number of chests taken, for the current total */
+    private String[] chestsMessages = new String[0];
 
     /** Initialize this hero in the stage */
     LodeRunnerHero(LodeRunnerStage stage) {
         super(stage);
     }
 
+    /** Make this hero as new, at a given tile index */
+    public void reset(int tileIndex) {
+        delayMessage = 0;
+        currentMessage = null;
+        wasShowingMessage = false;
+        super.reset(tileIndex);
+    }
+
     /** Position this hero at a given tile index */
     public void moveToTile(int tileIndex) {
         super.moveToTile(tileIndex);
@@ -51,7 +61,6 @@ public class LodeRunnerHero extends LodeRunnerCharacter {
             }
         }
         // Get frame from "magic" keys (see LodeRunnerCharacter.getFrame)
-        int[] keyFrames = {23, 6, 0, 6};
         return getFrame(keyFrames);
     }
 
@@ -91,6 +100,21 @@ public class LodeRunnerHero extends LodeRunnerCharacter {
         return super.shouldFall() && !stage.isVilainAt(xTile, yTile + 1);
     }
 
+    /** Mark the area where this hero is rendered as changed, including digging effects and floating message */
+    protected void markDirty() {
+        super.markDirty();
+        if (currentMove == MOVE_DIG_LEFT || currentMove == MOVE_DIG_RIGHT) {
+            int xFire = xTile + (lookLeft ? -1 : +1);
+            stage.dirtyRegion.add(xFire * LodeRunnerStage.SPRITE_WIDTH, yTile * LodeRunnerStage.SPRITE_HEIGHT,
+                    LodeRunnerStage.SPRITE_WIDTH, 2 * LodeRunnerStage.SPRITE_HEIGHT);
+        }
+        if (delayMessage > 0 || wasShowingMessage) {
+            // Message floats up to half a tile above this hero
+            stage.dirtyRegion.add(getCenterX() - 2 * LodeRunnerStage.SPRITE_WIDTH, getY() - LodeRunnerStage.SPRITE_HEIGHT,
+                    4 * LodeRunnerStage.SPRITE_WIDTH, LodeRunnerStage.SPRITE_HEIGHT);
+        }
+    }
+
     /** Request this hero to perform a given move */
     public void requestMove(int move) {
         // Set the requested move as proposed next move
@@ -113,12 +137,26 @@ public class LodeRunnerHero extends LodeRunnerCharacter {
         }
     }
 
+    /** Get the chests count message, built once for every count */
+    private String getChestsMessage() {
+        if (chestsMessages.length != stage.nChests + 1) {
+            chestsMessages = new String[stage.nChests + 1];
+        }
+        if (nChests >= chestsMessages.length) {
+            return Integer.toString(nChests) + "/" + Integer.toString(stage.nChests);
+        }
+        if (chestsMessages[nChests] == null) {
+            chestsMessages[nChests] = Integer.toString(nChests) + "/" + Integer.toString(stage.nChests);
+        }
+        return chestsMessages[nChests];
+    }
+
     /** Take the chest at this hero's tile position. If this is the last chest, enable the stage exit. */
     protected boolean takeChest() {
         boolean chestTaken = super.takeChest();
         if (chestTaken) {
         	stage.updateLevelInfo();
-            sayMessage(Integer.toString(nChests) + "/" + Integer.toString(stage.nChests));
+            sayMessage(getChestsMessage());
             if (nChests == stage.nChests) {
                 stage.enableExit();
             }
@@ -153,11 +191,8 @@ public class LodeRunnerHero extends LodeRunnerCharacter {
             // Can only dig below an empty tile (therefore excluding ladder, rope, chest, etc.)
             // Can't dig below a vilain
             int xFire = move == MOVE_DIG_LEFT ? xTile - 1 : xTile + 1;
-            int nextType = stage.getTileAppearance(xFire, yTile);
-            int nextBottomType = stage.getTileBehavior(xFire, yTile + 1);
-            return (nextType == LodeRunnerStage.TILE_VOID
-                    && nextBottomType == LodeRunnerStage.TILE_BRICK
-                    && !stage.isVilainAt(xFire, yTile));
+            int digMask = move == MOVE_DIG_LEFT ? LodeRunnerStage.MASK_DIG_LEFT : LodeRunnerStage.MASK_DIG_RIGHT;
+            return (stage.getMoveMask(xTile, yTile) & digMask) != 0 && !stage.isVilainAt(xFire, yTile);
         } else {
             return super.isPossibleMove(move);
         }
@@ -165,7 +200,6 @@ public class LodeRunnerHero extends LodeRunnerCharacter {
 
     /** Kill this hero */
     protected void kill() {
-    	Log.d(LodeRunnerHero.class.getCanonicalName(), "Killed!");
         stage.endHeroDied = true;
     }
 
@@ -206,13 +240,13 @@ public class LodeRunnerHero extends LodeRunnerCharacter {
         }
     }
 
-    /** Render the floating message above this hero */
-    private void paintMessage(Graphics g) {
-        stage.font.drawString(g, currentMessage, getCenterX(), getY() - (DELAY_MESSAGE - delayMessage) * LodeRunnerStage.SPRITE_HEIGHT / DELAY_MESSAGE / 2, Graphics.HCENTER | Graphics.BOTTOM);
+    /** Record the floating message above this hero */
+    private void recordMessage(DisplayList list) {
+        stage.font.drawString(list, currentMessage, getCenterX(), getY() - (DELAY_MESSAGE - delayMessage) * LodeRunnerStage.SPRITE_HEIGHT / DELAY_MESSAGE / 2, Graphics.HCENTER | Graphics.BOTTOM);
     }
 
-    /** Render this hero */
-    public boolean paint(Graphics g) {
+    /** Record the rendering of this hero */
+    public void record(DisplayList list) {
         // if this hero is digging...
         if (currentMove == MOVE_DIG_LEFT || currentMove == MOVE_DIG_RIGHT) {
             //... neighboring tiles should be painted accordingly
@@ -243,18 +277,17 @@ public class LodeRunnerHero extends LodeRunnerCharacter {
             }
             int xFire = xTile + (lookLeft ? -1 : +1);
             if (frameBlaster != 0) {
-                stage.sprites.paint(g, frameBlaster, xFire * LodeRunnerStage.SPRITE_WIDTH, yTile * LodeRunnerStage.SPRITE_HEIGHT);
+                list.addSprite(frameBlaster, xFire * LodeRunnerStage.SPRITE_WIDTH, yTile * LodeRunnerStage.SPRITE_HEIGHT);
             }
             if (frameMelting != 0) {
-                stage.sprites.paint(g, frameMelting, xFire * LodeRunnerStage.SPRITE_WIDTH, (yTile + 1) * LodeRunnerStage.SPRITE_HEIGHT);
+                list.addSprite(frameMelting, xFire * LodeRunnerStage.SPRITE_WIDTH, (yTile + 1) * LodeRunnerStage.SPRITE_HEIGHT);
             }
         }
         // paint hero itself
-        boolean isVisible = super.paint(g);
+        super.record(list);
         // Render a floating message, if any
         if (delayMessage > 0 ) {
-           paintMessage(g);
+           recordMessage(list);
         }
-        return isVisible;
     }
 }
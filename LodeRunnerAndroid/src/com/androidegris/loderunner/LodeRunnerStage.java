@@ -2,19 +2,24 @@ package com.androidegris.loderunner;
 
 /* Copyright � 2006 - Fabien GIGANTE */
 
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.androidegris.loderunner.listeners.LevelInfoChangedListener;
+import com.androidegris.loderunner.listeners.StageLoadedListener;
 import com.androidegris.loderunner.midp.Graphics;
 import com.androidegris.loderunner.midp.Image;
 
-import android.util.Log;
 
 
 /**
@@ -32,6 +37,8 @@ public class LodeRunnerStage {
     public static final int STAGE_WIDTH = 28;
     /** Stage height in tiles */
     public static final int STAGE_HEIGHT = 16;
+    /** Size in bytes of a level in the levels resource file, each tile is encoded on 4 bits */
+    public static final int LEVEL_SIZE = STAGE_WIDTH * STAGE_HEIGHT / 2;
     /** Tile/sprite width in pixels */
     public static final int SPRITE_WIDTH = 12;
     /** Tile/sprite height in pixels */
@@ -66,8 +73,33 @@ public class LodeRunnerStage {
     public static final int TILE_HOLE_FULL = 11;
     /** Volatile tile type constant used for brick completely dug (considered empty, can trap villains) */
     public static final int TILE_HOLE_EMPTY = 12;
+    /** Move mask bit set if a character can run left from a tile */
+    public static final int MASK_RUN_LEFT = 1;
+    /** Move mask bit set if a character can run right from a tile */
+    public static final int MASK_RUN_RIGHT = 2;
+    /** Move mask bit set if a character can climb up from a tile */
+    public static final int MASK_CLIMB_UP = 4;
+    /** Move mask bit set if a character can climb (or fall) down from a tile */
+    public static final int MASK_CLIMB_DOWN = 8;
+    /** Move mask bit set if a villain can climb out of a hole from a tile */
+    public static final int MASK_CLIMB_HOLE = 16;
+    /** Move mask bit set if a character should fall from a tile */
+    public static final int MASK_FALL = 32;
+    /** Move mask bit set if the hero can dig on the left of a tile */
+    public static final int MASK_DIG_LEFT = 64;
+    /** Move mask bit set if the hero can dig on the right of a tile */
+    public static final int MASK_DIG_RIGHT = 128;
     /** Tiles array describing the stage landscape. Values are tile type TILE_* constants. */
     private int[] tiles = new int[STAGE_WIDTH * STAGE_HEIGHT];
+    /** Width of the tile behavior and appearance tables: the stage, with a border of one tile on each side */
+    static final int PADDED_WIDTH = STAGE_WIDTH + 2;
+    static final int PADDED_HEIGHT = STAGE_HEIGHT + 2;
+    /** Behavior of every tile (see getTileBehavior), including the border tiles outside the stage */
+    private final byte[] tileBehaviors = new byte[PADDED_WIDTH * PADDED_HEIGHT];
+    /** Appearance of every tile (see getTileAppearance), including the border tiles outside the stage */
+    private final byte[] tileAppearances = new byte[PADDED_WIDTH * PADDED_HEIGHT];
+    /** Moves possible from every tile, as far as tiles are concerned (see MASK_* and getMoveMask) */
+    private final int[] moveMasks = new int[STAGE_WIDTH * STAGE_HEIGHT];
     /** Lode Runner sprites (for both tiles & characters) */
     public GameSprite sprites;
     /** Lode Runner small sprite font */
@@ -76,14 +108,47 @@ public class LodeRunnerStage {
     public static final int[] spriteMap = { /*Core*/14, 15, 12, 16, 17, 18, 19, 20, 21, 0, /*Volatile*/ 13, 75, 74};
     /** Sprite size constant for normal stage rendering */
     public static final int SPRITE_NORMAL = 0;
-    /** Sprite size constant for small stage overview rendering */
+    /** Sprite size constant for small stage overview rendering (see paintMiniMap) */
     public static final int SPRITE_SMALL = 1;
+    /** Size in pixels of a tile in the stage overview */
+    public static final int MINI_MAP_TILE_SIZE = 2;
+    public static final int MINI_MAP_WIDTH = STAGE_WIDTH * MINI_MAP_TILE_SIZE;
+    public static final int MINI_MAP_HEIGHT = STAGE_HEIGHT * MINI_MAP_TILE_SIZE;
+    /** Mapping table from tile appearance to stage overview color */
+    private static final int[] miniMapColors = { 0x000000, 0xb05030, 0x909090, 0xe0e0e0, 0xa08050, 0xb05030, 0xe0e0e0, 0xffd700};
     /** Lode Runner game hero */
     public volatile LodeRunnerHero hero = null;
     /** Lode Runner game vilains. Vector of LodeRunnerVilain elements. */
-    public List<LodeRunnerVillain> villains = null;
-    /** Lode Runner holes in this stage. */
-    public List<LodeRunnerHole> holes = null;
+    public final List<LodeRunnerVillain> villains = Collections.synchronizedList(new ArrayList<LodeRunnerVillain>());
+    /** Characters created for previous stages, reused so that loading a stage doesn't allocate them again */
+    private LodeRunnerHero spareHero = null;
+    private final List<LodeRunnerVillain> spareVillains = new ArrayList<LodeRunnerVillain>();
+    /** Flag set if the villains of the next loaded stage are stored in villainPool rather than in villains */
+    public boolean useVillainPool = false;
+    /** Lode Runner game vilains, when useVillainPool is set */
+    final VillainPool villainPool = new VillainPool(this);
+    /** Number of living villains on each tile (indexed by getTileIndex) */
+    private final int[] livingVillains = new int[STAGE_WIDTH * STAGE_HEIGHT];
+    /** Number of respawning villains on each tile (indexed by getTileIndex) */
+    private final int[] respawningVillains = new int[STAGE_WIDTH * STAGE_HEIGHT];
+    /** For each row, bit x set if tile x of the row is TILE_VOID */
+    private final int[] voidTilesRows = new int[STAGE_HEIGHT];
+    /** For each row, bit x set if tile x of the row is occupied by a villain, living or respawning */
+    private final int[] villainTilesRows = new int[STAGE_HEIGHT];
+    /** Access columns for villains climbing up or down, kept in line with the tiles */
+    final NavigationIndex navigationIndex = new NavigationIndex(this);
+    /** Lode Runner holes in this stage, waiting to be refilled */
+    final HoleWheel holeWheel = new HoleWheel(this);
+    /** Villain AI constant for the original heuristics, each villain on its own */
+    public static final int AI_CLASSIC = 0;
+    /** Villain AI constant for following distances to the hero shared by all villains (see FlowField) */
+    public static final int AI_FLOW_FIELD = 1;
+    /** Villain AI in use in this stage */
+    public int villainAi = AI_CLASSIC;
+    /** Distances to the hero, for AI_FLOW_FIELD */
+    final FlowField flowField = new FlowField(this);
+    /** Incremented whenever a tile changes, so that what is computed from the tiles knows when to compute again */
+    int tilesVersion = 0;
     /** Current random number generator for the stage */
     public GameRandom random = new GameRandom();
     /** Total number of chests to be collected in this stage */
@@ -96,125 +161,275 @@ public class LodeRunnerStage {
     public boolean endCompleted = false;
     /** Stage background pixel image */
     private Image backgroundImage = null;
-    private List<Integer> backgroundTilesToRepaint = null;
+    /** Stage overview pixel image, one block per tile, updated along with the background image */
+    private Image miniMapImage = null;
+    /** Tiles changed by the game events, not yet recorded in a display list, null for a stage without sprites */
+    private DirtyTileSet backgroundTilesToRepaint = null;
+    /** Words taken from backgroundTilesToRepaint while recording a display list */
+    private final long[] drainedTiles = new long[DirtyTileSet.WORDS];
+    /** Tile appearances as drawn in the background image, only used by the drawing thread */
+    private final int[] backgroundTiles = new int[STAGE_WIDTH * STAGE_HEIGHT];
+    /** Tiles of the background image to paint again, only used by the drawing thread */
+    private final int[] backgroundTilesOutdated = new int[STAGE_WIDTH * STAGE_HEIGHT];
+    private final boolean[] isBackgroundTileOutdated = new boolean[STAGE_WIDTH * STAGE_HEIGHT];
+    private int backgroundTilesOutdatedCount = 0;
+    /**
+     * Display lists are triple buffered: the game events record in one, the
+     * drawing thread paints another, and the last published one waits in between
+     */
+    private DisplayList recordingList = new DisplayList();
+    private DisplayList publishedList = new DisplayList();
+    private DisplayList paintedList = new DisplayList();
+    private boolean isPublishedListNew = false;
+    private final Object displayListLock = new Object();
+    /** Stage area that changed since last rendering */
+    public final DirtyRegion dirtyRegion = new DirtyRegion();
     /** Game canvas using this stage*/
     //private LodeRunnerView canvas = null;
     /** Stage loading state */
     public boolean isLoaded = false;
-    /** Stage loading is done in a separated thread */
-    private Thread loadingThread = null;
+    /** Single background thread loading the stages, shared by every stage */
+    private static final ExecutorService loadingExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Stage loading");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /** Stage loading in the background, null if none */
+    private Future<?> loading = null;
+    /** Incremented by every load, so that an outdated background loading is never applied */
+    private int loadingRequest = 0;
+    /** Level decoded ahead of time, null if none, and where it comes from */
+    private Future<StageTemplate> prefetched = null;
+    private LevelStore prefetchedStore = null;
+    private int prefetchedLevel = -1;
+    private final Object loadingLock = new Object();
+    /** Maximum number of decoded levels kept in cache */
+    private static final int MAX_CACHED_TEMPLATES = 8;
+    /** Levels recently decoded, least recently loaded first, and where they come from */
+    private final Map<Integer, StageTemplate> cachedTemplates = new LinkedHashMap<Integer, StageTemplate>(2 * MAX_CACHED_TEMPLATES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<Integer, StageTemplate> eldest) {
+            return size() > MAX_CACHED_TEMPLATES;
+        }
+    };
+    private LevelStore cachedTemplatesStore = null;
+    /** Number of ticks run since the stage was loaded */
+    private int ticks = 0;
 	private LevelInfoChangedListener levelInfoChangedListener;
-	private LodeRunnerDrawingThread drawingThread;
+	private StageLoadedListener stageLoadedListener;
+
+    /**
+     * Initialize an empty stage, without sprites nor font. Such a stage is
+     * never rendered, it only runs the game (see LodeRunnerEngine).
+     */
+    public LodeRunnerStage() {
+        // Tiles outside the stage behave as concrete
+        for (int i = 0; i < PADDED_WIDTH * PADDED_HEIGHT; i++) {
+            tileBehaviors[i] = (byte) computeTileBehavior(TILE_OUTSIDE, false);
+            tileAppearances[i] = (byte) computeTileAppearance(TILE_OUTSIDE, false);
+        }
+    }
 
     /** Initialize an empty stage. Load the sprites resources. */
-    public LodeRunnerStage(InputStream fontInputStream, InputStream tilesInputStream, LodeRunnerDrawingThread drawingThread) {
-        this.drawingThread = drawingThread;
+    public LodeRunnerStage(InputStream fontInputStream, InputStream tilesInputStream) {
+        this();
         try {
             // Load game resource images (font and sprites)
             font = new GameFont(fontInputStream, 3, 5, "0123456789/");
             sprites = new GameSprite(tilesInputStream, SPRITE_WIDTH, SPRITE_HEIGHT, 0, 0);
-            // If enough memory, use a background image to speed up normal stage rendering
-            backgroundImage = Image.createImage(STAGE_WIDTH_PIXELS, STAGE_HEIGHT_PIXELS);
-            backgroundTilesToRepaint = Collections.synchronizedList(new ArrayList<Integer>());
+            // Background image is created on first rendering
+            backgroundTilesToRepaint = new DirtyTileSet();
         } catch (Exception e) {
-            Log.e(LodeRunnerStage.class.getCanonicalName(), "Inicialization error", e);
-            throw new Error(e);
+            throw new Error("Inicialization error", e);
         }
     }
 
-    /** Loading thread for asynchronous stage building */
-    private class LoadingThread extends Thread {
+    /** Background loading of a stage, the decoding of its level then its building */
+    private class LoadingTask implements Runnable {
 
-    	private final InputStream inputStreamBin;
+    	private final LevelStore levelStore;
     	private final int level;
+    	private final int request;
     	
-        public LoadingThread(InputStream inputStreamBin, int level) {
-			this.inputStreamBin = inputStreamBin;
+        public LoadingTask(LevelStore levelStore, int level, int request) {
+			this.levelStore = levelStore;
 			this.level = level;
+			this.request = request;
 		}
 
-		
-
-		/** Entry point of this asynchronous loading thread */
         public void run() {
-            try {
-                // In the original Apple II version, the levels can be found at offset 0x3000-0xc600
-                // (aligned on 0x100 bytes blocks), in "loderunner.dsk" and "ch_lode.dsk"
-                // "LodeRunner.bin" contains the usefull extracts of those two files
-                // (without the alignment to save more space in the jar archive)
-                // Each tile is encoded on 4 bits
-                DataInput input = new DataInputStream(inputStreamBin);
-                // Read level's buffer
-                int level = this.level % MAX_LEVELS;//  canvas.level % MAX_LEVELS;
-                byte[] buffer = new byte[STAGE_WIDTH * STAGE_HEIGHT / 2];
-                input.skipBytes(buffer.length * level);
-                input.readFully(buffer);
-                // Decode tiles from buffer content
-                for (int i = 0; i < STAGE_WIDTH * STAGE_HEIGHT; i++) {
-                    // Exit if thread is canceled
-                    if (isLoaded) {
-                        break;
-                    }
-                    // Decode next tile
-                    int tile = (i % 2 == 0) ? buffer[i / 2] & 0xf : (buffer[i / 2] >> 4) & 0xf;
-                    switch (tile) {
-                        // Create hero at his starting point
-                        case TILE_HERO:
-                            hero = new LodeRunnerHero(LodeRunnerStage.this);
-                            hero.moveToTile(i);
-                            tile = TILE_VOID;
-                            break;
-                        // Add villains at their initial positions
-                        case TILE_MONK:
-                            LodeRunnerVillain vilain = new LodeRunnerVillain(LodeRunnerStage.this);
-                            vilain.moveToTile(i);
-                            villains.add(vilain);
-                            tile = TILE_VOID;
-                            break;
-                        // Count number of chests
-                        case TILE_CHEST:
-                            nChests++;
-                            break;
-                    }
-                    tiles[i] = tile;
-                    // Track tiles to repaint
-                    if (backgroundTilesToRepaint != null) {
-                        backgroundTilesToRepaint.add(i);
-                    }
-                    // Periodically yield to other threads
-                    if (i % STAGE_WIDTH == 0) {
-                        yield();
-                    }
+            StageTemplate template = new StageTemplate(levelStore.getLevel(level));
+            synchronized (loadingLock) {
+                // A more recent load has been requested meanwhile
+                if (request != loadingRequest) {
+                    return;
                 }
-                // The show can go on...
-                exitEnabled = (nChests == 0);
-                isLoaded = true;
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally{
-            	try {
-					inputStreamBin.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+                cacheTemplate(levelStore, level, template);
+                applyTemplate(template);
+                loading = null;
             }
-            loadingThread = null;
-            drawingThread.needsRepaint =  LodeRunnerDrawingThread.REPAINT_ALL; 
-            updateLevelInfo();
+            stageLoaded();
         }
     }
 
-    /** Load a stage from a given level in the levels resource file */
-    public void loadFromResource(InputStream binInputStream, int level) {
-        // Abort previous loading attempt
-        while (loadingThread != null) {
-            isLoaded = true;
+    /** Build this stage from a decoded level, the exit not being enabled yet */
+    private void applyTemplate(StageTemplate template) {
+        System.arraycopy(template.tiles, 0, tiles, 0, tiles.length);
+        System.arraycopy(template.tileBehaviors, 0, tileBehaviors, 0, tileBehaviors.length);
+        System.arraycopy(template.tileAppearances, 0, tileAppearances, 0, tileAppearances.length);
+        System.arraycopy(template.moveMasks, 0, moveMasks, 0, moveMasks.length);
+        System.arraycopy(template.voidTilesRows, 0, voidTilesRows, 0, voidTilesRows.length);
+        // Track tiles to repaint
+        if (backgroundTilesToRepaint != null) {
+            backgroundTilesToRepaint.markAll();
+        }
+        nChests = template.nChests;
+        // Place hero at his starting point
+        if (template.heroTileIndex >= 0) {
+            if (spareHero == null) {
+                spareHero = new LodeRunnerHero(this);
+            }
+            spareHero.reset(template.heroTileIndex);
+            hero = spareHero;
+        }
+        // Add villains at their initial positions
+        for (int i = 0; i < template.villainTileIndexes.length; i++) {
+            if (useVillainPool) {
+                villainPool.add(template.villainTileIndexes[i]);
+            } else {
+                if (i == spareVillains.size()) {
+                    spareVillains.add(new LodeRunnerVillain(this));
+                }
+                LodeRunnerVillain vilain = spareVillains.get(i);
+                vilain.reset(template.villainTileIndexes[i]);
+                addVillain(vilain);
+            }
+        }
+        // The show can go on...
+        navigationIndex.invalidateAll();
+        tilesVersion++;
+        if (nChests == 0) {
+            enableExit();
+        }
+        isLoaded = true;
+    }
+
+    /** Hand the loaded stage over to the drawing thread and the listeners */
+    private void stageLoaded() {
+        dirtyRegion.addAll();
+        publishDisplayList();
+        if (stageLoadedListener != null) {
+            stageLoadedListener.stageLoaded();
+        }
+        updateLevelInfo();
+    }
+
+    /**
+     * Load a stage from a given level of the levels resource file. The level
+     * is built right away if it has been decoded ahead of time (see prefetch),
+     * otherwise it is loaded in the background.
+     */
+    public void loadFromStore(LevelStore levelStore, int level) {
+        level %= MAX_LEVELS;
+        synchronized (loadingLock) {
+            reset();
+            StageTemplate template = getCachedTemplate(levelStore, level);
+            if (template == null) {
+                template = takePrefetched(levelStore, level);
+            }
+            if (template == null) {
+                loading = loadingExecutor.submit(new LoadingTask(levelStore, level, loadingRequest));
+                return;
+            }
+            cacheTemplate(levelStore, level, template);
+            applyTemplate(template);
+        }
+        stageLoaded();
+    }
+
+    /**
+     * Decode a given level of the levels resource file in the background,
+     * while another one is played, so that loading it is immediate
+     */
+    public void prefetch(final LevelStore levelStore, int level) {
+        final int prefetchLevel = level % MAX_LEVELS;
+        synchronized (loadingLock) {
+            if (prefetched != null && prefetchedStore == levelStore && prefetchedLevel == prefetchLevel) {
+                return;
+            }
+            prefetchedStore = levelStore;
+            prefetchedLevel = prefetchLevel;
+            prefetched = loadingExecutor.submit(new Callable<StageTemplate>() {
+                public StageTemplate call() {
+                    return new StageTemplate(levelStore.getLevel(prefetchLevel));
+                }
+            });
+        }
+    }
+
+    /** Get a level decoded by a previous load, null if not in cache. Called with loadingLock held. */
+    private StageTemplate getCachedTemplate(LevelStore levelStore, int level) {
+        return levelStore == cachedTemplatesStore ? cachedTemplates.get(level) : null;
+    }
+
+    /** Keep a decoded level, for the next time it is loaded. Called with loadingLock held. */
+    private void cacheTemplate(LevelStore levelStore, int level, StageTemplate template) {
+        if (levelStore != cachedTemplatesStore) {
+            cachedTemplates.clear();
+            cachedTemplatesStore = levelStore;
+        }
+        cachedTemplates.put(level, template);
+    }
+
+    /** Take the level decoded ahead of time, if it is the given one and it is ready. Returns null otherwise. */
+    private StageTemplate takePrefetched(LevelStore levelStore, int level) {
+        Future<StageTemplate> template = prefetched;
+        if (template == null || prefetchedStore != levelStore || prefetchedLevel != level || !template.isDone()) {
+            return null;
+        }
+        prefetched = null;
+        try {
+            return template.get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Load a stage from a level's buffer (see LevelStore), in the calling
+     * thread. The stage random number generator is seeded, so that the game
+     * goes the same way given the same moves.
+     */
+    public void loadFromBytes(byte[] buffer, long seed) {
+        StageTemplate template = new StageTemplate(buffer);
+        synchronized (loadingLock) {
+            reset();
+            random.setSeed(seed);
+            applyTemplate(template);
+        }
+        stageLoaded();
+    }
+
+    /** Forget the previous stage, before loading a new one. Called with loadingLock held. */
+    private void reset() {
+        // Abort previous loading attempt, if not done yet
+        loadingRequest++;
+        if (loading != null) {
+            loading.cancel(false);
+            loading = null;
         }
         // Reset members
         isLoaded = false;
         hero = null;
-        villains = Collections.synchronizedList (new ArrayList<LodeRunnerVillain>());
-        holes = Collections.synchronizedList (new ArrayList<LodeRunnerHole>());
+        villains.clear();
+        holeWheel.clear();
+        villainPool.clear();
+        Arrays.fill(livingVillains, 0);
+        Arrays.fill(respawningVillains, 0);
+        Arrays.fill(villainTilesRows, 0);
         nChests = 0;
         exitEnabled = false;
         endHeroDied = false;
@@ -222,9 +437,8 @@ public class LodeRunnerStage {
         if (backgroundTilesToRepaint != null) {
             backgroundTilesToRepaint.clear();
         }
-        // Asynchronously load the stage
-        loadingThread = new LoadingThread(binInputStream, level);
-        loadingThread.start();        
+        ticks = 0;
+        publishDisplayList();
     }
 
     /** Get tile array index from x and y position of the tile. */
@@ -241,15 +455,31 @@ public class LodeRunnerStage {
         return tiles[getTileIndex(xTile, yTile)];
     }
 
+    /** Get the index in the tile behavior and appearance tables from x (-1 to STAGE_WIDTH) and y (-1 to STAGE_HEIGHT) position of the tile */
+    static int getPaddedTileIndex(int xTile, int yTile) {
+        return (yTile + 1) * PADDED_WIDTH + xTile + 1;
+    }
+
+    /** Update the behavior and appearance tables for a given tile */
+    private void updateTileTables(int tileIndex) {
+        int paddedTileIndex = getPaddedTileIndex(tileIndex % STAGE_WIDTH, tileIndex / STAGE_WIDTH);
+        tileBehaviors[paddedTileIndex] = (byte) computeTileBehavior(tiles[tileIndex], exitEnabled);
+        tileAppearances[paddedTileIndex] = (byte) computeTileAppearance(tiles[tileIndex], exitEnabled);
+    }
+
     /**
-     * Get the tile behavior at a given position.
+     * Get the tile behavior at a given position, from -1 to STAGE_WIDTH and
+     * -1 to STAGE_HEIGHT (tiles around the stage are outside).
      * A tile behavior is computed based on the tile type as follows:
      * - TILE_CHEST and TILE_HOLE_EMPTY have a TILE_VOID behavior
      * - TILE_OUTSIDE and TILE_HOLE_FULL have a TILE_CONCRETE behavior
      * - TILE_EXIT has either a TILE_LADDER (stage completed) or TILE_VOID (otherwise) behavior
      */
     public int getTileBehavior(int xTile, int yTile) {
-        int tile = getTile(xTile, yTile);
+        return tileBehaviors[getPaddedTileIndex(xTile, yTile)];
+    }
+
+    static int computeTileBehavior(int tile, boolean exitEnabled) {
         if (tile == TILE_CHEST || tile == TILE_MONK || tile == TILE_HERO || tile == TILE_HOLE_EMPTY) {
             tile = TILE_VOID;
         } else if (tile == TILE_OUTSIDE || tile == TILE_HOLE_FULL) {
@@ -261,14 +491,18 @@ public class LodeRunnerStage {
     }
 
     /**
-     * Get the tile appearance at a given position.
+     * Get the tile appearance at a given position, from -1 to STAGE_WIDTH and
+     * -1 to STAGE_HEIGHT (tiles around the stage are outside).
      * A tile appearance is computed based on the tile type as follows:
      * - TILE_TRAP has a TILE_BRICK appearance
      * - TILE_OUTSIDE, TILE_HOLE_EMPTY and TILE_HOLE_FULL have a TILE_VOID appearance
      * - TILE_EXIT has either a TILE_LADDER (stage completed) or TILE_VOID (otherwise) appearance
      */
     public int getTileAppearance(int xTile, int yTile) {
-        int tile = getTile(xTile, yTile);
+        return tileAppearances[getPaddedTileIndex(xTile, yTile)];
+    }
+
+    static int computeTileAppearance(int tile, boolean exitEnabled) {
         if (tile == TILE_TRAP) {
             tile = TILE_BRICK;
         } else if (tile == TILE_MONK || tile == TILE_HERO || tile == TILE_OUTSIDE || tile == TILE_HOLE_FULL || tile == TILE_HOLE_EMPTY) {
@@ -279,30 +513,165 @@ public class LodeRunnerStage {
         return tile;
     }
 
+    /**
+     * Get the moves possible from a given tile, as far as tiles are concerned
+     * (characters are not), as a combination of MASK_* bits
+     */
+    public int getMoveMask(int xTile, int yTile) {
+        return moveMasks[getTileIndex(xTile, yTile)];
+    }
+
+    /** Can a character run into a tile of the given behavior? */
+    private static boolean isRunnable(int type) {
+        return type != TILE_BRICK && type != TILE_TRAP && type != TILE_CONCRETE;
+    }
+
+    /** Compute the move mask of a given tile from the tile behavior and appearance tables */
+    static int computeMoveMask(byte[] tileBehaviors, byte[] tileAppearances, int xTile, int yTile) {
+        int mask = 0;
+        int currentType = tileBehaviors[getPaddedTileIndex(xTile, yTile)];
+        int topType = tileBehaviors[getPaddedTileIndex(xTile, yTile - 1)];
+        int bottomType = tileBehaviors[getPaddedTileIndex(xTile, yTile + 1)];
+        // Can't run into brick, trap or concrete
+        if (isRunnable(tileBehaviors[getPaddedTileIndex(xTile - 1, yTile)])) {
+            mask |= MASK_RUN_LEFT;
+        }
+        if (isRunnable(tileBehaviors[getPaddedTileIndex(xTile + 1, yTile)])) {
+            mask |= MASK_RUN_RIGHT;
+        }
+        // Need a ladder to climb up. Can't climb up into brick, trap or concrete
+        if (isRunnable(topType)) {
+            mask |= MASK_CLIMB_HOLE;
+            if (currentType == TILE_LADDER) {
+                mask |= MASK_CLIMB_UP;
+            }
+        }
+        // Can't climb down (or fall down) into brick or concrete (but trap is OK).
+        if (bottomType != TILE_BRICK && bottomType != TILE_CONCRETE) {
+            mask |= MASK_CLIMB_DOWN;
+        }
+        // Fall unless inside a brick, on a ladder, hung to a rope, or standing on brick, concrete or at the top of a ladder
+        if (currentType != TILE_BRICK && currentType != TILE_LADDER && currentType != TILE_ROPE
+                && bottomType != TILE_BRICK && bottomType != TILE_CONCRETE && bottomType != TILE_LADDER) {
+            mask |= MASK_FALL;
+        }
+        // Can only dig into bricks, below an empty tile (therefore excluding ladder, rope, chest, etc.)
+        if (tileAppearances[getPaddedTileIndex(xTile - 1, yTile)] == TILE_VOID && tileBehaviors[getPaddedTileIndex(xTile - 1, yTile + 1)] == TILE_BRICK) {
+            mask |= MASK_DIG_LEFT;
+        }
+        if (tileAppearances[getPaddedTileIndex(xTile + 1, yTile)] == TILE_VOID && tileBehaviors[getPaddedTileIndex(xTile + 1, yTile + 1)] == TILE_BRICK) {
+            mask |= MASK_DIG_RIGHT;
+        }
+        return mask;
+    }
+
+    /** Recompute the move masks of the tiles around a given tile (moves from them depend on it) */
+    private void updateMoveMasks(int xTile, int yTile) {
+        for (int y = Math.max(yTile - 1, 0); y <= Math.min(yTile + 1, STAGE_HEIGHT - 1); y++) {
+            for (int x = Math.max(xTile - 1, 0); x <= Math.min(xTile + 1, STAGE_WIDTH - 1); x++) {
+                moveMasks[getTileIndex(x, y)] = computeMoveMask(tileBehaviors, tileAppearances, x, y);
+            }
+        }
+    }
+
     /** Set the tile type at a given position */
     public void setTile(int xTile, int yTile, int type) {
         if (xTile < 0 || xTile >= STAGE_WIDTH || yTile < 0 || yTile >= STAGE_HEIGHT) {
             return;
         }
         tiles[getTileIndex(xTile, yTile)] = type;
+        updateTileTables(getTileIndex(xTile, yTile));
+        updateVoidTiles(getTileIndex(xTile, yTile));
+        updateMoveMasks(xTile, yTile);
+        navigationIndex.invalidateTile(yTile);
+        tilesVersion++;
         // Background image (if any) is no more up to date
         if (backgroundTilesToRepaint != null) {
-            backgroundTilesToRepaint.add(getTileIndex(xTile, yTile));
+            backgroundTilesToRepaint.mark(getTileIndex(xTile, yTile));
         }
+        dirtyRegion.addTile(xTile, yTile);
         // Keep track of dug holes (for delayed refill)
         if (type == TILE_HOLE_EMPTY) {
-            holes.add(new LodeRunnerHole(this, xTile, yTile));
+            holeWheel.add(getTileIndex(xTile, yTile));
+        }
+    }
+
+    /** Add a villain to this stage, at its current position */
+    public void addVillain(LodeRunnerVillain vilain) {
+        villains.add(vilain);
+        vilain.startCount();
+    }
+
+    /** Get the number of villains in this stage */
+    public int getVillainCount() {
+        return villains.size() + villainPool.size();
+    }
+
+    /** Heartbeat for every villain of this stage */
+    public void heartBeatVillains() {
+        // Indexed loop, an iterator would be allocated on every heartBeat
+        synchronized (villains) {
+            for (int i = 0; i < villains.size(); i++) {
+                villains.get(i).heartBeat();
+            }
+        }
+        villainPool.heartBeatAll();
+    }
+
+    /**
+     * Run one game tick: the hero's heartBeat every tick, the villains' and
+     * the holes' heartBeats every 2 ticks. Nothing moves once the stage is over.
+     */
+    public void tick() {
+        if (!isLoaded || hero == null || endCompleted || endHeroDied) {
+            return;
+        }
+        hero.heartBeat();
+        if (!endCompleted && !endHeroDied && ticks % 2 == 0) {
+            heartBeatVillains();
+            // Refill the holes that are due
+            holeWheel.heartBeat();
+        }
+        ticks++;
+    }
+
+    /** Get the number of ticks run since the stage was loaded */
+    public int getTicks() {
+        return ticks;
+    }
+
+    /** Update the number of villains on a tile. Called by villains when they change tile or respawn. */
+    void countVillain(int tileIndex, boolean respawning, int count) {
+        if (respawning) {
+            respawningVillains[tileIndex] += count;
+        } else {
+            livingVillains[tileIndex] += count;
+        }
+        int bit = 1 << (tileIndex % STAGE_WIDTH);
+        if (livingVillains[tileIndex] + respawningVillains[tileIndex] > 0) {
+            villainTilesRows[tileIndex / STAGE_WIDTH] |= bit;
+        } else {
+            villainTilesRows[tileIndex / STAGE_WIDTH] &= ~bit;
+        }
+    }
+
+    /** Keep the void tiles bits in line with a given tile */
+    private void updateVoidTiles(int tileIndex) {
+        int bit = 1 << (tileIndex % STAGE_WIDTH);
+        if (tiles[tileIndex] == TILE_VOID) {
+            voidTilesRows[tileIndex / STAGE_WIDTH] |= bit;
+        } else {
+            voidTilesRows[tileIndex / STAGE_WIDTH] &= ~bit;
         }
     }
 
     /** Check if the given tile is occupied by a villain */
     private boolean isVilainAt(int xTile, int yTile, boolean includeRespawning) {
-        for (LodeRunnerVillain vilain :villains) {
-            if (vilain.xTile == xTile && vilain.yTile == yTile && (includeRespawning || vilain.currentMove != LodeRunnerVillain.MOVE_RESPAWN)) {
-                return true;
-            }
+        if (xTile < 0 || xTile >= STAGE_WIDTH || yTile < 0 || yTile >= STAGE_HEIGHT) {
+            return false;
         }
-        return false;
+        int tileIndex = getTileIndex(xTile, yTile);
+        return livingVillains[tileIndex] > 0 || (includeRespawning && respawningVillains[tileIndex] > 0);
     }
 
     /** Check if the given tile is occupied by a living villain */
@@ -310,33 +679,49 @@ public class LodeRunnerStage {
         return isVilainAt(xTile, yTile, false);
     }
 
+    /** Check if any tile of a row, from xFrom to xTo, is occupied by a living villain */
+    public boolean isVilainBetween(int xFrom, int xTo, int yTile) {
+        for (int x = xFrom; x <= xTo; x++) {
+            if (isVilainAt(x, yTile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /** Randomly computes a tile index suitable for respawning a villain */
     public int computeRandomRespawnPoint() {
-        // Compute possible respawn points (not on top row)
-        List<Integer> possiblePoints = new ArrayList<Integer>();
-        for (int y = 1; y < STAGE_HEIGHT; y++) {
-            for (int x = 0; x < STAGE_WIDTH; x++) {
-                if (getTile(x, y) == TILE_VOID && !isVilainAt(x, y, true)) {
-                    possiblePoints.add(getTileIndex(x, y));
-                }
-            }
-            if (!possiblePoints.isEmpty()) {
+        // Compute possible respawn points (not on top row): void tiles without any villain
+        int possiblePoints = 0;
+        int y;
+        for (y = 1; y < STAGE_HEIGHT; y++) {
+            possiblePoints = voidTilesRows[y] & ~villainTilesRows[y];
+            if (possiblePoints != 0) {
                 break;
             }
         }
-        // Return a random possible position
-        return possiblePoints.get(random.nextInt(possiblePoints.size()));
+        // Return a random possible position, skipping the lower points
+        int n = random.nextInt(Integer.bitCount(possiblePoints));
+        for (int i = 0; i < n; i++) {
+            possiblePoints &= possiblePoints - 1;
+        }
+        return getTileIndex(Integer.numberOfTrailingZeros(possiblePoints), y);
     }
 
     /** Enables the exit for this stage */
     public void enableExit() {
         if (!exitEnabled) {
             exitEnabled = true;
-            if (backgroundTilesToRepaint != null) {
-                for (int i = 0; i < STAGE_WIDTH * STAGE_HEIGHT; i++) {
-                    if (tiles[i] == TILE_EXIT) {
-                        backgroundTilesToRepaint.add(i);
+            navigationIndex.invalidateAll();
+            tilesVersion++;
+            for (int i = 0; i < STAGE_WIDTH * STAGE_HEIGHT; i++) {
+                if (tiles[i] == TILE_EXIT) {
+                    updateTileTables(i);
+                    updateMoveMasks(i % STAGE_WIDTH, i / STAGE_WIDTH);
+                    if (backgroundTilesToRepaint != null) {
+                        backgroundTilesToRepaint.mark(i);
                     }
+                    dirtyRegion.addTile(i % STAGE_WIDTH, i / STAGE_WIDTH);
                 }
             }
         }
@@ -357,59 +742,169 @@ public class LodeRunnerStage {
         }
     }
 
-    /** Renders only the tiles that need repainting */
+    /**
+     * Make sure the background image exists.
+     * A new background image is blank, so every tile is marked for repainting.
+     */
+    private void prepareBackgroundImage() {
+        if (backgroundImage != null) {
+            return;
+        }
+        miniMapImage = Image.createImage(MINI_MAP_WIDTH, MINI_MAP_HEIGHT);
+        backgroundImage = Image.createImage(STAGE_WIDTH_PIXELS, STAGE_HEIGHT_PIXELS);
+        for (int i = 0; i < STAGE_WIDTH * STAGE_HEIGHT; i++) {
+            markBackgroundTileOutdated(i);
+        }
+    }
+
+    private void markBackgroundTileOutdated(int tileIndex) {
+        if (!isBackgroundTileOutdated[tileIndex]) {
+            isBackgroundTileOutdated[tileIndex] = true;
+            backgroundTilesOutdated[backgroundTilesOutdatedCount++] = tileIndex;
+        }
+    }
+
+    /** Renders only the tiles that need repainting, in place */
     public void repaintBackgroundTiles() {
         if (backgroundImage == null) {
             return;
         }
         Graphics g = backgroundImage.getGraphics();
+        Graphics miniMapGraphics = miniMapImage.getGraphics();
         // Loop on every tile that needs repainting
-        for (Integer tileIndex : backgroundTilesToRepaint.toArray(new Integer[backgroundTilesToRepaint.size()])) {
+        for (int i = 0; i < backgroundTilesOutdatedCount; i++) {
+            int tileIndex = backgroundTilesOutdated[i];
             int xTile = tileIndex % LodeRunnerStage.STAGE_WIDTH;
             int yTile = tileIndex / LodeRunnerStage.STAGE_WIDTH;
             // Tiles are drawn according to their appearance
-            int tileAppearance = getTileAppearance(xTile, yTile);
+            int tileAppearance = backgroundTiles[tileIndex];
             sprites.paint(g, spriteMap[tileAppearance], xTile * SPRITE_WIDTH, yTile * SPRITE_HEIGHT);
+            // The overview only needs a block of the tile color
+            miniMapGraphics.setColor(miniMapColors[tileAppearance]);
+            miniMapGraphics.fillRect(xTile * MINI_MAP_TILE_SIZE, yTile * MINI_MAP_TILE_SIZE, MINI_MAP_TILE_SIZE, MINI_MAP_TILE_SIZE);
+            isBackgroundTileOutdated[tileIndex] = false;
         }
-        backgroundTilesToRepaint.clear();
+        backgroundTilesOutdatedCount = 0;
     }
 
-    /** Render the stage's sprites (hero and vilains) */
-    public void paintSprites(Graphics g) {
-        for (LodeRunnerHole lodeRunnerHole : holes.toArray(new LodeRunnerHole[holes.size()])) {
-        	lodeRunnerHole.paint(g);
+    /**
+     * Record the stage's changed tiles and sprites (holes, vilains and hero)
+     * in a display list, and hand it over to the drawing thread.
+     * Called by the game events, after they have changed the stage.
+     */
+    public synchronized void publishDisplayList() {
+        // Stage without sprites (see LodeRunnerEngine), nothing to render
+        if (backgroundTilesToRepaint == null) {
+            return;
         }
-        for (LodeRunnerVillain lodeRunnerVilain : villains.toArray(new LodeRunnerVillain[villains.size()])) {
-        	lodeRunnerVilain.paint(g);
+        DisplayList list = recordingList;
+        list.reset();
+        synchronized (displayListLock) {
+            // The drawing thread hasn't taken the last list, its changes must not be lost
+            if (isPublishedListNew) {
+                list.carryChanges(publishedList);
+            }
         }
+        LodeRunnerHero hero = this.hero;
+        list.isLoaded = isLoaded;
+        list.hasHero = hero != null;
         if (hero != null) {
-            hero.paint(g);
+            list.heroCenterX = hero.getCenterX();
+            list.heroCenterY = hero.getCenterY();
+            list.heroY = hero.getY();
+            list.isMessageAtTop = hero.getY() <= 16 && hero.wasShowingMessage();
+        }
+        int drainedCount = 0;
+        for (int word = 0; word < DirtyTileSet.WORDS; word++) {
+            drainedTiles[word] = backgroundTilesToRepaint.takeWord(word);
+            drainedCount += Long.bitCount(drainedTiles[word]);
+        }
+        if (list.getTilesCount() + drainedCount > DisplayList.MAX_TILES) {
+            list.clearTiles();
+            for (int word = 0; word < DirtyTileSet.WORDS; word++) {
+                drainedTiles[word] = DirtyTileSet.getAllBits(word);
+            }
+        }
+        for (int word = 0; word < DirtyTileSet.WORDS; word++) {
+            long bits = drainedTiles[word];
+            while (bits != 0) {
+                int tileIndex = word * 64 + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                list.addTile(tileIndex, getTileAppearance(tileIndex % STAGE_WIDTH, tileIndex / STAGE_WIDTH));
+            }
+        }
+        if (isLoaded) {
+            holeWheel.record(list);
+            synchronized (villains) {
+                for (int i = 0; i < villains.size(); i++) {
+                    villains.get(i).record(list);
+                }
+            }
+            villainPool.record(list);
+            if (hero != null) {
+                hero.record(list);
+            }
+        }
+        synchronized (displayListLock) {
+            // Changed area goes along with the list, the drawing thread paints exactly what it changes
+            list.drainDirtyRegion(dirtyRegion);
+            recordingList = publishedList;
+            publishedList = list;
+            isPublishedListNew = true;
         }
     }
 
+    /**
+     * Take the last published display list, if any, and apply its tile
+     * changes. Otherwise the previous one is painted again, with nothing
+     * changed. Called by the drawing thread, before painting the list.
+     */
+    DisplayList acquireDisplayList() {
+        boolean isNew = false;
+        synchronized (displayListLock) {
+            if (isPublishedListNew) {
+                DisplayList list = paintedList;
+                paintedList = publishedList;
+                publishedList = list;
+                isPublishedListNew = false;
+                isNew = true;
+            }
+        }
+        if (isNew) {
+            for (int i = 0; i < paintedList.getTilesCount(); i++) {
+                int tileIndex = paintedList.getTileIndex(i);
+                backgroundTiles[tileIndex] = paintedList.getTileAppearance(i);
+                markBackgroundTileOutdated(tileIndex);
+            }
+        } else {
+            paintedList.clearDirty();
+        }
+        return paintedList;
+    }
+
     /** Translate to center the screen */
-    public void centerScreen(Graphics g) {
+    public void centerScreen(Graphics g, DisplayList list) {
         int w0 = g.getClipWidth(), h0 = g.getClipHeight();
         int tx = 0, ty = 0;
-        if (isLoaded && hero != null) {
+        if (list.isLoaded && list.hasHero) {
             // Compute screen translation, based on hero's position
             if (w0 >= STAGE_WIDTH_PIXELS) {
                 tx = (w0 - STAGE_WIDTH_PIXELS) / 2;
-            } else if (hero.getCenterX() < w0 / 2) {
+            } else if (list.heroCenterX < w0 / 2) {
                 tx = 0;
-            } else if (hero.getCenterX() > STAGE_WIDTH_PIXELS - w0 / 2) {
+            } else if (list.heroCenterX > STAGE_WIDTH_PIXELS - w0 / 2) {
                 tx = w0 - STAGE_WIDTH_PIXELS;
             } else {
-                tx = w0 / 2 - hero.getCenterX();
+                tx = w0 / 2 - list.heroCenterX;
             }
             if (h0 >= STAGE_HEIGHT_PIXELS) {
                 ty = (h0 - STAGE_HEIGHT_PIXELS) / 2;
-            } else if (hero.getCenterY() < h0 / 2) {
+            } else if (list.heroCenterY < h0 / 2) {
                 ty = 0;
-            } else if (hero.getCenterY() > STAGE_HEIGHT_PIXELS - h0 / 2) {
+            } else if (list.heroCenterY > STAGE_HEIGHT_PIXELS - h0 / 2) {
                 ty = h0 - STAGE_HEIGHT_PIXELS;
             } else {
-                ty = h0 / 2 - hero.getCenterY();
+                ty = h0 / 2 - list.heroCenterY;
             }
         } else {
             // Center stage
@@ -419,43 +914,60 @@ public class LodeRunnerStage {
         g.translate(tx, ty);
     }
 
-    boolean isMessageAtTop() {
-        return hero != null && hero.getY() <= 16 && hero.wasShowingMessage();
+    /** Render the stage, as recorded in the last published display list */
+    public void paint(Graphics g) {
+        paint(g, acquireDisplayList());
     }
 
-    /** Render the stage */
-    public void paint(Graphics g) {
+    /** Render the stage, as recorded in a display list (see acquireDisplayList) */
+    void paint(Graphics g, DisplayList list) {
         // Prepare the screen (clear, center)
         g.setColor(0);
-        if (!isLoaded || backgroundImage == null) {
-            g.fillRect(0, 0, g.getClipWidth(), g.getClipHeight());
+        if (!list.isLoaded) {
+            g.fillRect(g.getClipX(), g.getClipY(), g.getClipWidth(), g.getClipHeight());
         }
-        centerScreen(g);
+        centerScreen(g, list);
         // deleting the message when hero is at the top
-        if (isMessageAtTop()) {
+        if (list.isMessageAtTop) {
             int blockSize = SPRITE_WIDTH ;
-            g.fillRect(hero.getCenterX() - blockSize, hero.getY() - blockSize, 2 * blockSize, blockSize);
+            g.fillRect(list.heroCenterX - blockSize, list.heroY - blockSize, 2 * blockSize, blockSize);
         }
 
-        if (isLoaded) {
-            // Paint tiles, using background Image if available
-            if (backgroundImage != null) {
-                repaintBackgroundTiles();
-                g.drawImage(backgroundImage, 0, 0, Graphics.TOP | Graphics.LEFT);
-            } else {
-                paintTiles(g);
-            }
+        if (list.isLoaded) {
+            // Paint tiles, using the background image
+            prepareBackgroundImage();
+            repaintBackgroundTiles();
+            g.drawFrame(backgroundImage, 0, 0);
             // Paint sprites
-            paintSprites(g);
+            list.replay(g, sprites, font);
         }
         // Revert translation
         g.translate(-g.getTranslateX(), -g.getTranslateY());
     }
 
+    /**
+     * Render the stage overview at a given position, in surface pixels:
+     * tiles from the overview image, characters as dots.
+     * Must be called after paint, it shows the same display list.
+     */
+    public void paintMiniMap(Graphics g, int x, int y) {
+        if (miniMapImage == null || !paintedList.isLoaded) {
+            return;
+        }
+        g.drawScaledImage(miniMapImage, x, y, MINI_MAP_WIDTH, MINI_MAP_HEIGHT);
+        g.setColor(0x808080);
+        g.drawRect(x - 1, y - 1, MINI_MAP_WIDTH + 1, MINI_MAP_HEIGHT + 1);
+        paintedList.paintDots(g, x, y, MINI_MAP_TILE_SIZE);
+    }
+
 	public void setLevelInfoChangedListener(LevelInfoChangedListener levelInfoChangedListener) {
 		this.levelInfoChangedListener = levelInfoChangedListener;		
 	}
 
+	public void setStageLoadedListener(StageLoadedListener stageLoadedListener) {
+		this.stageLoadedListener = stageLoadedListener;
+	}
+
 	public void updateLevelInfo() {
 		if(this.levelInfoChangedListener != null){
 			LevelInfo levelInfo = new LevelInfo();
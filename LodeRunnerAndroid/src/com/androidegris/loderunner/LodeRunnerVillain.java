@@ -14,6 +14,8 @@ import com.androidegris.loderunner.midp.Graphics;
  */
 class LodeRunnerVillain extends LodeRunnerCharacter {
 
+    /** Sprite key frames of the villain (see LodeRunnerCharacter.getFrame) */
+    private static final int[] keyFrames = {42, 21, 61, 66};
     /** Move type constant for climbing outside a hole */
     public static final int MOVE_CLIMB_HOLE = 6;
     /** Move type constant for respawning */
@@ -31,6 +33,15 @@ class LodeRunnerVillain extends LodeRunnerCharacter {
      * - if currentMove equals MOVE_CLIMB_HOLE, he is climbing outside the hole
      */
     private boolean isTrapped;
+    /**
+     * Is this vilain counted in the stage occupancy grid? Only once added to
+     * the stage (see LodeRunnerStage.addVillain): resetting a spare vilain
+     * must not change the grid.
+     */
+    private boolean isCounted;
+    /** Tile index and respawning state this vilain is counted with in the stage occupancy grid */
+    private int countedTileIndex;
+    private boolean countedRespawning;
 
     /** Initialize this villain in the stage */
     LodeRunnerVillain(LodeRunnerStage stage) {
@@ -42,11 +53,40 @@ class LodeRunnerVillain extends LodeRunnerCharacter {
         super.moveToTile(tile);
         lookLeft = true;
         isTrapped = false;
+        updateCount();
+    }
+
+    /** Make this villain as new, at a given tile index, not counted in the stage occupancy grid yet */
+    public void reset(int tileIndex) {
+        isCounted = false;
+        super.reset(tileIndex);
+    }
+
+    /** Start counting this vilain in the stage occupancy grid */
+    void startCount() {
+        isCounted = true;
+        countedTileIndex = LodeRunnerStage.getTileIndex(xTile, yTile);
+        countedRespawning = currentMove == MOVE_RESPAWN;
+        stage.countVillain(countedTileIndex, countedRespawning, 1);
+    }
+
+    /** Keep the stage occupancy grid in line with this vilain's tile and respawning state */
+    private void updateCount() {
+        if (!isCounted) {
+            return;
+        }
+        int tileIndex = LodeRunnerStage.getTileIndex(xTile, yTile);
+        boolean respawning = currentMove == MOVE_RESPAWN;
+        if (tileIndex != countedTileIndex || respawning != countedRespawning) {
+            stage.countVillain(countedTileIndex, countedRespawning, -1);
+            countedTileIndex = tileIndex;
+            countedRespawning = respawning;
+            stage.countVillain(countedTileIndex, countedRespawning, 1);
+        }
     }
 
     /** Compute the sprite frame number for painting this villain */
     public int getFrame() {
-        int[] keyFrames = {42, 21, 61, 66};
         // When respawning
         if (currentMove == MOVE_RESPAWN) {
             if (delayBusy > DELAY_RESPAWN / 2) {
@@ -133,6 +173,7 @@ class LodeRunnerVillain extends LodeRunnerCharacter {
                 setCurrentMove(reverseMove);
             }
         }
+        updateCount();
         return hasMoved;
     }
 
@@ -143,150 +184,211 @@ class LodeRunnerVillain extends LodeRunnerCharacter {
             xDelta = 0;
             yDelta = -1;
         }
+        updateCount();
     }
 
     /** Check if this vilain can perform a given move */
     protected boolean isPossibleMove(int move) {
-        boolean isPossible;
-        if (move == MOVE_CLIMB_HOLE) {
-            // Can't escape from a digged hole into brick, trap or  or concrete
-            int nextType = stage.getTileBehavior(xTile, yTile - 1);
-            isPossible = (nextType != LodeRunnerStage.TILE_BRICK && nextType != LodeRunnerStage.TILE_TRAP && nextType != LodeRunnerStage.TILE_CONCRETE);
-        } else {
-            isPossible = super.isPossibleMove(move);
-        }
-        if (isPossible) {
-            // Additional AI conditions:
-            // - don't run into another vilain
-            // - don't jump into digged holes (avoid suicidal tendancies)
-            if (move == MOVE_RUN_LEFT) {
-                isPossible = !stage.isVilainAt(xTile - 1, yTile);
-            } else if (move == MOVE_RUN_RIGHT) {
-                isPossible = !stage.isVilainAt(xTile + 1, yTile);
-            } else if (move == MOVE_CLIMB_UP || move == MOVE_CLIMB_HOLE) {
-                isPossible = !stage.isVilainAt(xTile, yTile - 1);
-            } else if (move == MOVE_CLIMB_DOWN) {
-                isPossible = stage.getTile(xTile, yTile + 1) != LodeRunnerStage.TILE_HOLE_EMPTY && !stage.isVilainAt(xTile, yTile + 1);
-            }
+        return isPossibleMove(stage, xTile, yTile, move);
+    }
+
+    /** Compute the next AI move for this vilain */
+    protected void computeNextMove() {
+        nextMove = computeNextMove(stage, xTile, yTile, nextMove);
+    }
+
+    /*
+     * The AI rules below only depend on the stage and on the vilain's tile,
+     * they are shared with the villains of a VillainPool.
+     */
+
+    /** Check if a vilain at a given tile can perform a given move */
+    static boolean isPossibleMove(LodeRunnerStage stage, int xTile, int yTile, int move) {
+        int mask = stage.getMoveMask(xTile, yTile);
+        // Same as LodeRunnerCharacter.isPossibleMove, plus escaping from a digged hole, which can't lead into brick, trap or concrete
+        // Additional AI conditions:
+        // - don't run into another vilain
+        // - don't jump into digged holes (avoid suicidal tendancies)
+        switch (move) {
+            case MOVE_RUN_LEFT:
+                return (mask & LodeRunnerStage.MASK_RUN_LEFT) != 0 && !stage.isVilainAt(xTile - 1, yTile);
+            case MOVE_RUN_RIGHT:
+                return (mask & LodeRunnerStage.MASK_RUN_RIGHT) != 0 && !stage.isVilainAt(xTile + 1, yTile);
+            case MOVE_CLIMB_UP:
+                return (mask & LodeRunnerStage.MASK_CLIMB_UP) != 0 && !stage.isVilainAt(xTile, yTile - 1);
+            case MOVE_CLIMB_HOLE:
+                return (mask & LodeRunnerStage.MASK_CLIMB_HOLE) != 0 && !stage.isVilainAt(xTile, yTile - 1);
+            case MOVE_CLIMB_DOWN:
+                return (mask & LodeRunnerStage.MASK_CLIMB_DOWN) != 0
+                        && stage.getTile(xTile, yTile + 1) != LodeRunnerStage.TILE_HOLE_EMPTY && !stage.isVilainAt(xTile, yTile + 1);
+            default:
+                return false;
         }
-        return isPossible;
     }
 
-    /** Try the given move as the next move for this vilain. Returns true on success, false otherwise. */
-    private boolean tryNextMove(int move) {
-        nextMove = move;
-        super.computeNextMove();
-        return nextMove != MOVE_NONE;
+    /**
+     * Try the given move as the next move of a vilain at a given tile (see LodeRunnerCharacter.computeNextMove).
+     * Returns the move to take, MOVE_NONE if impossible.
+     */
+    private static int tryNextMove(LodeRunnerStage stage, int xTile, int yTile, int move) {
+        if (!isPossibleMove(stage, xTile, yTile, move)) {
+            return MOVE_NONE;
+        }
+        // Climbing down from anything else than a ladder is falling
+        if (move == MOVE_CLIMB_DOWN && stage.getTileBehavior(xTile, yTile + 1) != LodeRunnerStage.TILE_LADDER) {
+            return MOVE_FALL_DOWN;
+        }
+        return move;
     }
 
-    /** Find the best move for this vilain to reach a vertical access to climb up or down towards the hero */
-    private boolean findAccess(int move) {
-        int xLeft = 0, xRight = 0;
+    /**
+     * Find the best move for a vilain to reach a vertical access to climb up or down towards the hero.
+     * Returns MOVE_NONE if there is none.
+     */
+    private static int findAccess(LodeRunnerStage stage, int xTile, int yTile, int move) {
         // Compute the vertical access locations
         // (Note: other vilains being considered impassable, further vilains will try to use a different access towards player)
-        LodeRunnerVillain ghost = new LodeRunnerVillain(stage);
-        ghost.moveToTile(LodeRunnerStage.getTileIndex(xTile, yTile));
-        while (ghost.isPossibleMove(MOVE_RUN_LEFT)) {
-            ghost.xTile--;
-            if (ghost.isPossibleMove(move)) {
-                xLeft = xTile - ghost.xTile;
-                break;
-            }
-        }
-        ghost.moveToTile(LodeRunnerStage.getTileIndex(xTile, yTile));
-        while (ghost.isPossibleMove(MOVE_RUN_RIGHT)) {
-            ghost.xTile++;
-            if (ghost.isPossibleMove(move)) {
-                xRight = ghost.xTile - xTile;
-                break;
-            }
-        }
-        ghost = null;
+        int xLeft = findAccess(stage, xTile, yTile, move, true);
+        int xRight = findAccess(stage, xTile, yTile, move, false);
         // No reachable access, don't take any move yet
         if (xLeft == 0 && xRight == 0) {
-            return tryNextMove(MOVE_NONE);
+            return MOVE_NONE;
         }
         // Only one access, take it
         if (xRight == 0) {
-            return tryNextMove(MOVE_RUN_LEFT);
+            return tryNextMove(stage, xTile, yTile, MOVE_RUN_LEFT);
         }
         if (xLeft == 0) {
-            return tryNextMove(MOVE_RUN_RIGHT);
+            return tryNextMove(stage, xTile, yTile, MOVE_RUN_RIGHT);
         }
         // Find shortest distance to hero
         int xHero = stage.hero.xTile;
         xLeft += Math.abs(xTile - xLeft - xHero);
         xRight += Math.abs(xTile + xRight - xHero);
         if (xLeft < xRight) {
-            return tryNextMove(MOVE_RUN_LEFT);
+            return tryNextMove(stage, xTile, yTile, MOVE_RUN_LEFT);
         }
         if (xLeft > xRight) {
-            return tryNextMove(MOVE_RUN_RIGHT);
+            return tryNextMove(stage, xTile, yTile, MOVE_RUN_RIGHT);
         }
         // Routes have same length, don't take any move yet
-        return tryNextMove(MOVE_NONE);
+        return MOVE_NONE;
     }
 
-    /** Compute the next AI move for this vilain */
-    protected void computeNextMove() {
-        int initialMove = nextMove;
-        if (initialMove != MOVE_CLIMB_HOLE && stage.hero != null) {
-            int yHero = stage.hero.yTile;
+    /**
+     * Find the distance to the nearest vertical access to climb up or down, running left (or right).
+     * Returns 0 if there is no reachable access.
+     */
+    private static int findAccess(LodeRunnerStage stage, int xTile, int yTile, int move, boolean left) {
+        int yAccess = move == MOVE_CLIMB_UP ? yTile - 1 : yTile + 1;
+        int x = xTile;
+        int xAccess = stage.navigationIndex.findAccess(xTile, yTile, move, left);
+        while (xAccess >= 0) {
+            // Other vilains on the way can't be passed
+            if (left ? stage.isVilainBetween(xAccess, x - 1, yTile) : stage.isVilainBetween(x + 1, xAccess, yTile)) {
+                return 0;
+            }
+            // Access is free, unless another vilain is standing where it leads
+            if (!stage.isVilainAt(xAccess, yAccess)) {
+                return Math.abs(xAccess - xTile);
+            }
+            x = xAccess;
+            xAccess = stage.navigationIndex.findAccess(xAccess, yTile, move, left);
+        }
+        return 0;
+    }
+
+    /**
+     * Find the move towards the neighbour tile nearest to the hero, in the stage flow field.
+     * Returns MOVE_NONE if no neighbour is nearer than the vilain's tile, or if the way is blocked.
+     */
+    private static int followFlowField(LodeRunnerStage stage, int xTile, int yTile) {
+        FlowField flowField = stage.flowField;
+        int bestMove = MOVE_NONE;
+        int bestDistance = flowField.getDistance(xTile, yTile);
+        int distance = flowField.getDistance(xTile, yTile - 1);
+        if (distance < bestDistance && isPossibleMove(stage, xTile, yTile, MOVE_CLIMB_UP)) {
+            bestMove = MOVE_CLIMB_UP;
+            bestDistance = distance;
+        }
+        distance = flowField.getDistance(xTile, yTile + 1);
+        if (distance < bestDistance && isPossibleMove(stage, xTile, yTile, MOVE_CLIMB_DOWN)) {
+            bestMove = MOVE_CLIMB_DOWN;
+            bestDistance = distance;
+        }
+        distance = flowField.getDistance(xTile - 1, yTile);
+        if (distance < bestDistance && isPossibleMove(stage, xTile, yTile, MOVE_RUN_LEFT)) {
+            bestMove = MOVE_RUN_LEFT;
+            bestDistance = distance;
+        }
+        distance = flowField.getDistance(xTile + 1, yTile);
+        if (distance < bestDistance && isPossibleMove(stage, xTile, yTile, MOVE_RUN_RIGHT)) {
+            bestMove = MOVE_RUN_RIGHT;
+        }
+        return tryNextMove(stage, xTile, yTile, bestMove);
+    }
+
+    /** Compute the next AI move of a vilain at a given tile, given its requested next move */
+    static int computeNextMove(LodeRunnerStage stage, int xTile, int yTile, int initialMove) {
+        LodeRunnerHero hero = stage.hero;
+        int move;
+        if (initialMove != MOVE_CLIMB_HOLE && hero != null) {
+            // Follow the shared distances to the hero, if enabled and not blocked
+            if (stage.villainAi == LodeRunnerStage.AI_FLOW_FIELD && (move = followFlowField(stage, xTile, yTile)) != MOVE_NONE) {
+                return move;
+            }
+            int yHero = hero.yTile;
             // If this villain is far enough, try to anticipate the hero's move
-            if (stage.hero.xTile != xTile) {
-                if (stage.hero.yDelta > 0) {
+            if (hero.xTile != xTile) {
+                if (hero.yDelta > 0) {
                     yHero += 2;
-                } else if (stage.hero.yDelta < 0) {
+                } else if (hero.yDelta < 0) {
                     yHero -= 2;
                 }
             }
             // Try to move up or down towards the hero
-            if (yHero < yTile && tryNextMove(MOVE_CLIMB_UP)) {
-                return;
+            if (yHero < yTile && (move = tryNextMove(stage, xTile, yTile, MOVE_CLIMB_UP)) != MOVE_NONE) {
+                return move;
             }
-            if (yHero > yTile && tryNextMove(MOVE_CLIMB_DOWN)) {
-                return;
+            if (yHero > yTile && (move = tryNextMove(stage, xTile, yTile, MOVE_CLIMB_DOWN)) != MOVE_NONE) {
+                return move;
             }
             // Try to reach a ladder up or a way down towards the hero
-            if (yHero < yTile && findAccess(MOVE_CLIMB_UP)) {
-                return;
+            if (yHero < yTile && (move = findAccess(stage, xTile, yTile, MOVE_CLIMB_UP)) != MOVE_NONE) {
+                return move;
             }
-            if (yHero > yTile && findAccess(MOVE_CLIMB_DOWN)) {
-                return;
+            if (yHero > yTile && (move = findAccess(stage, xTile, yTile, MOVE_CLIMB_DOWN)) != MOVE_NONE) {
+                return move;
             }
             // Run towards the hero if not moving or at same height (without this condition, level 8 is impassable)
             if (yHero == yTile || initialMove == MOVE_NONE) {
                 // Try to move left or right towards the hero
-                if (stage.hero.xTile < xTile && tryNextMove(MOVE_RUN_LEFT)) {
-                    return;
+                if (hero.xTile < xTile && (move = tryNextMove(stage, xTile, yTile, MOVE_RUN_LEFT)) != MOVE_NONE) {
+                    return move;
                 }
-                if (stage.hero.xTile > xTile && tryNextMove(MOVE_RUN_RIGHT)) {
-                    return;
+                if (hero.xTile > xTile && (move = tryNextMove(stage, xTile, yTile, MOVE_RUN_RIGHT)) != MOVE_NONE) {
+                    return move;
                 }
                 // Try to move in the same direction as the hero
-                if (tryNextMove(stage.hero.lookLeft ? MOVE_RUN_LEFT : MOVE_RUN_RIGHT)) {
-                    return;
+                if ((move = tryNextMove(stage, xTile, yTile, hero.lookLeft ? MOVE_RUN_LEFT : MOVE_RUN_RIGHT)) != MOVE_NONE) {
+                    return move;
                 }
             }
         }
         // Continue initial move
-        if (tryNextMove(initialMove)) {
-            return;
+        if ((move = tryNextMove(stage, xTile, yTile, initialMove)) != MOVE_NONE) {
+            return move;
         }
         // Try a random move (prevent vilains from being stuck)
         switch (stage.random.nextInt(4)) {
             case 0:
-                tryNextMove(MOVE_CLIMB_UP);
-                break;
+                return tryNextMove(stage, xTile, yTile, MOVE_CLIMB_UP);
             case 1:
-                tryNextMove(MOVE_CLIMB_DOWN);
-                break;
+                return tryNextMove(stage, xTile, yTile, MOVE_CLIMB_DOWN);
             case 2:
-                tryNextMove(MOVE_RUN_LEFT);
-                break;
-            case 3:
-                tryNextMove(MOVE_RUN_RIGHT);
-                break;
+                return tryNextMove(stage, xTile, yTile, MOVE_RUN_LEFT);
+            default:
+                return tryNextMove(stage, xTile, yTile, MOVE_RUN_RIGHT);
         }
     }
 
@@ -341,6 +443,7 @@ class LodeRunnerVillain extends LodeRunnerCharacter {
         moveToTile(stage.computeRandomRespawnPoint());
         currentMove = MOVE_RESPAWN;
         delayBusy = DELAY_RESPAWN;
+        updateCount();
     }
 
     /**
@@ -355,12 +458,12 @@ class LodeRunnerVillain extends LodeRunnerCharacter {
      *         shouldFall()
      *         takeChest()
      *         computeNextMove()
-     *           tryNextMove()
-     *             super.computeNextMove()
-     *               isPossibleMove()
-     *           findAccess()
-     *             isPossibleMove()
+     *           computeNextMove(stage, xTile, yTile, nextMove)
+     *             followFlowField()
      *             tryNextMove()
+     *               isPossibleMove()
+     *             findAccess()
+     *               tryNextMove()
      *         setCurrentMove()
      *       dropChest()
      *     computeNewPosition()
@@ -376,7 +479,7 @@ class LodeRunnerVillain extends LodeRunnerCharacter {
     }
 
     /** Draw a small red and white diamond */
-    private void drawDiamond(Graphics g, int x, int y, int size) {
+    private static void drawDiamond(Graphics g, int x, int y, int size) {
         g.setColor(0x00ff0000);
         if (size > 0) {
             g.drawLine(x - 1, y, x, y - 1);
@@ -394,33 +497,34 @@ class LodeRunnerVillain extends LodeRunnerCharacter {
         g.fillRect(x, y, 1, 1);
     }
 
-    /** Render this vilain */
-    public boolean paint(Graphics g) {
-        boolean isVisible = super.paint(g);
-        if (!isVisible) {
-            // Project this vilain's position on the clip borders
-            int cw = g.getClipWidth() - 1, ch = g.getClipHeight() - 1;
-            int cx = 2 * g.getClipX() + cw, cy = 2 * g.getClipY() + ch;
-            int x = 2 * getCenterX() - cx, y = 2 * getCenterY() - cy;
-            int z = Integer.MAX_VALUE;
-            if (Math.abs(x) > cw) {
-                z = Math.min(z, Math.abs(x) * ch);
-            }
-            if (Math.abs(y) > ch) {
-                z = Math.min(z, Math.abs(y) * cw);
-            }
-            x = (cx + cw * ch * x / z) / 2;
-            y = (cy + cw * ch * y / z) / 2;
-            // Signal this vilain's direction with a small diamond
-            int size = 0;
-            if (100 * z < 200 * cw * ch) {
-                size++;
-            }
-            if (100 * z < 130 * cw * ch) {
-                size++;
-            }
-            drawDiamond(g, x, y, size);
+    /** Record the rendering of this vilain */
+    public void record(DisplayList list) {
+        list.addVillain(getFrame(), getX(), getY(), getCenterX(), getCenterY());
+    }
+
+    /** Render the direction of an off screen vilain, given its center */
+    static void paintDirection(Graphics g, int centerX, int centerY) {
+        // Project this vilain's position on the clip borders
+        int cw = g.getClipWidth() - 1, ch = g.getClipHeight() - 1;
+        int cx = 2 * g.getClipX() + cw, cy = 2 * g.getClipY() + ch;
+        int x = 2 * centerX - cx, y = 2 * centerY - cy;
+        int z = Integer.MAX_VALUE;
+        if (Math.abs(x) > cw) {
+            z = Math.min(z, Math.abs(x) * ch);
+        }
+        if (Math.abs(y) > ch) {
+            z = Math.min(z, Math.abs(y) * cw);
+        }
+        x = (cx + cw * ch * x / z) / 2;
+        y = (cy + cw * ch * y / z) / 2;
+        // Signal this vilain's direction with a small diamond
+        int size = 0;
+        if (100 * z < 200 * cw * ch) {
+            size++;
+        }
+        if (100 * z < 130 * cw * ch) {
+            size++;
         }
-        return isVisible;
+        drawDiamond(g, x, y, size);
     }
 }
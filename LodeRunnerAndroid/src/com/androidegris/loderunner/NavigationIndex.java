@@ -0,0 +1,102 @@
+package com.androidegris.loderunner;
+
+/**
+ * For every tile of a stage, the nearest column on the left and on the right
+ * where a villain running along the row can climb up, or climb down. Only the
+ * tiles are taken into account: villains, which block the way, are checked by
+ * the caller.
+ *
+ * Rows are computed on demand, and invalidated when a tile changes.
+ */
+class NavigationIndex {
+
+	private final LodeRunnerStage stage;
+	/** Nearest access column on each side of each tile (indexed by getTileIndex), -1 if none */
+	private final int[] leftUp = new int[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+	private final int[] rightUp = new int[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+	private final int[] leftDown = new int[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+	private final int[] rightDown = new int[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+	private final boolean[] isRowValid = new boolean[LodeRunnerStage.STAGE_HEIGHT];
+
+	public NavigationIndex(LodeRunnerStage stage) {
+		this.stage = stage;
+	}
+
+	/** Forgets every row */
+	public void invalidateAll() {
+		for (int y = 0; y < LodeRunnerStage.STAGE_HEIGHT; y++) {
+			isRowValid[y] = false;
+		}
+	}
+
+	/** Forgets the rows depending on a given tile: its own row, and the rows climbing to it */
+	public void invalidateTile(int yTile) {
+		for (int y = Math.max(yTile - 1, 0); y <= Math.min(yTile + 1, LodeRunnerStage.STAGE_HEIGHT - 1); y++) {
+			isRowValid[y] = false;
+		}
+	}
+
+	/**
+	 * Get the nearest column where a villain can climb (MOVE_CLIMB_UP or
+	 * MOVE_CLIMB_DOWN) from the given tile, running left (or right) along its
+	 * row. Returns -1 if there is none.
+	 */
+	public int findAccess(int xTile, int yTile, int move, boolean left) {
+		if (!isRowValid[yTile]) {
+			computeRow(yTile);
+		}
+		int tileIndex = LodeRunnerStage.getTileIndex(xTile, yTile);
+		if (move == LodeRunnerCharacter.MOVE_CLIMB_UP) {
+			return left ? leftUp[tileIndex] : rightUp[tileIndex];
+		}
+		return left ? leftDown[tileIndex] : rightDown[tileIndex];
+	}
+
+	/** Can a villain climb down from a tile of the given move mask? (same as LodeRunnerVillain.isPossibleMove) */
+	private boolean isDownAccess(int mask, int xTile, int yTile) {
+		return (mask & LodeRunnerStage.MASK_CLIMB_DOWN) != 0 && stage.getTile(xTile, yTile + 1) != LodeRunnerStage.TILE_HOLE_EMPTY;
+	}
+
+	private void computeRow(int yTile) {
+		int rowIndex = LodeRunnerStage.getTileIndex(0, yTile);
+		// Running left, columns already passed are the candidates, as long as the way to them is free
+		int up = -1, down = -1;
+		for (int x = 0; x < LodeRunnerStage.STAGE_WIDTH; x++) {
+			if (x > 0) {
+				if ((stage.getMoveMask(x, yTile) & LodeRunnerStage.MASK_RUN_LEFT) == 0) {
+					up = down = -1;
+				} else {
+					int mask = stage.getMoveMask(x - 1, yTile);
+					if ((mask & LodeRunnerStage.MASK_CLIMB_UP) != 0) {
+						up = x - 1;
+					}
+					if (isDownAccess(mask, x - 1, yTile)) {
+						down = x - 1;
+					}
+				}
+			}
+			leftUp[rowIndex + x] = up;
+			leftDown[rowIndex + x] = down;
+		}
+		// Running right, the same from the other side
+		up = down = -1;
+		for (int x = LodeRunnerStage.STAGE_WIDTH - 1; x >= 0; x--) {
+			if (x < LodeRunnerStage.STAGE_WIDTH - 1) {
+				if ((stage.getMoveMask(x, yTile) & LodeRunnerStage.MASK_RUN_RIGHT) == 0) {
+					up = down = -1;
+				} else {
+					int mask = stage.getMoveMask(x + 1, yTile);
+					if ((mask & LodeRunnerStage.MASK_CLIMB_UP) != 0) {
+						up = x + 1;
+					}
+					if (isDownAccess(mask, x + 1, yTile)) {
+						down = x + 1;
+					}
+				}
+			}
+			rightUp[rowIndex + x] = up;
+			rightDown[rowIndex + x] = down;
+		}
+		isRowValid[yTile] = true;
+	}
+}
@@ -0,0 +1,78 @@
+package com.androidegris.loderunner;
+
+/**
+ * A level decoded from its buffer, ready to be applied to a stage (see
+ * LodeRunnerStage.loadFromStore). Decoding doesn't touch any stage, so that
+ * it can be done ahead of time, while another level is being played.
+ *
+ * Along with the tiles, a template holds every table the stage derives from
+ * them, as they are before the exit is enabled. Building a stage is then
+ * a copy of these arrays.
+ *
+ * A template is never modified once decoded, and can be applied again when
+ * the same level is restarted.
+ */
+class StageTemplate {
+
+	/** Tile types, hero and villains replaced by TILE_VOID */
+	final int[] tiles = new int[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+	/** Hero's starting tile index, -1 if none */
+	final int heroTileIndex;
+	/** Villains' starting tile indexes, in tile index order */
+	final int[] villainTileIndexes;
+	/** Total number of chests to be collected */
+	final int nChests;
+	/** Tile behavior and appearance tables (see LodeRunnerStage.getTileBehavior and getTileAppearance) */
+	final byte[] tileBehaviors = new byte[LodeRunnerStage.PADDED_WIDTH * LodeRunnerStage.PADDED_HEIGHT];
+	final byte[] tileAppearances = new byte[LodeRunnerStage.PADDED_WIDTH * LodeRunnerStage.PADDED_HEIGHT];
+	/** Move masks (see LodeRunnerStage.getMoveMask) */
+	final int[] moveMasks = new int[LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT];
+	/** For each row, bit x set if tile x of the row is TILE_VOID */
+	final int[] voidTilesRows = new int[LodeRunnerStage.STAGE_HEIGHT];
+
+	/** Decode a level's buffer, each tile encoded on 4 bits */
+	StageTemplate(byte[] buffer) {
+		int hero = -1;
+		int[] villains = new int[tiles.length];
+		int nVillains = 0;
+		int chests = 0;
+		for (int i = 0; i < tiles.length; i++) {
+			int tile = (i % 2 == 0) ? buffer[i / 2] & 0xf : (buffer[i / 2] >> 4) & 0xf;
+			switch (tile) {
+				case LodeRunnerStage.TILE_HERO:
+					hero = i;
+					tile = LodeRunnerStage.TILE_VOID;
+					break;
+				case LodeRunnerStage.TILE_MONK:
+					villains[nVillains++] = i;
+					tile = LodeRunnerStage.TILE_VOID;
+					break;
+				case LodeRunnerStage.TILE_CHEST:
+					chests++;
+					break;
+			}
+			tiles[i] = tile;
+		}
+		heroTileIndex = hero;
+		villainTileIndexes = new int[nVillains];
+		System.arraycopy(villains, 0, villainTileIndexes, 0, nVillains);
+		nChests = chests;
+		// Tiles outside the stage behave as concrete
+		for (int i = 0; i < tileBehaviors.length; i++) {
+			tileBehaviors[i] = (byte) LodeRunnerStage.computeTileBehavior(LodeRunnerStage.TILE_OUTSIDE, false);
+			tileAppearances[i] = (byte) LodeRunnerStage.computeTileAppearance(LodeRunnerStage.TILE_OUTSIDE, false);
+		}
+		for (int i = 0; i < tiles.length; i++) {
+			int xTile = i % LodeRunnerStage.STAGE_WIDTH, yTile = i / LodeRunnerStage.STAGE_WIDTH;
+			int paddedTileIndex = LodeRunnerStage.getPaddedTileIndex(xTile, yTile);
+			tileBehaviors[paddedTileIndex] = (byte) LodeRunnerStage.computeTileBehavior(tiles[i], false);
+			tileAppearances[paddedTileIndex] = (byte) LodeRunnerStage.computeTileAppearance(tiles[i], false);
+			if (tiles[i] == LodeRunnerStage.TILE_VOID) {
+				voidTilesRows[yTile] |= 1 << xTile;
+			}
+		}
+		for (int i = 0; i < tiles.length; i++) {
+			moveMasks[i] = LodeRunnerStage.computeMoveMask(tileBehaviors, tileAppearances, i % LodeRunnerStage.STAGE_WIDTH, i / LodeRunnerStage.STAGE_WIDTH);
+		}
+	}
+}
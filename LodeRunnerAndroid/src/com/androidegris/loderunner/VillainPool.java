@@ -0,0 +1,366 @@
+package com.androidegris.loderunner;
+
+/**
+ * The villains of a game stage, stored as parallel arrays of primitives
+ * rather than as LodeRunnerVillain objects, for stages with hundreds of
+ * villains (see LodeRunnerStage.useVillainPool).
+ *
+ * Villain v is described by the v-th element of every array. heartBeatAll
+ * runs every villain in order, making exactly the same moves and random
+ * draws as LodeRunnerVillain and LodeRunnerCharacter: the AI rules are the
+ * static ones of LodeRunnerVillain, the state changes of their methods are
+ * mirrored here with the villain index as first argument (VillainPoolTest
+ * checks both give the same games).
+ */
+class VillainPool {
+
+	/** A stage can't have more villains than tiles */
+	public static final int MAX_VILLAINS = LodeRunnerStage.STAGE_WIDTH * LodeRunnerStage.STAGE_HEIGHT;
+	/** Sprite key frames of the villains (see LodeRunnerCharacter.getFrame) */
+	private static final int[] keyFrames = {42, 21, 61, 66};
+
+	/** Lode Runner stage where the villains evolve */
+	private final LodeRunnerStage stage;
+	/** Number of villains */
+	private int count;
+	/** Position, in tiles */
+	private final int[] xTile = new int[MAX_VILLAINS];
+	private final int[] yTile = new int[MAX_VILLAINS];
+	/** Position relative to the tile (xAdjust is in 1/6 of a tile, yAdjust is in 1/5 of tile) */
+	private final int[] xAdjust = new int[MAX_VILLAINS];
+	private final int[] yAdjust = new int[MAX_VILLAINS];
+	/** Direction of the move */
+	private final int[] xDelta = new int[MAX_VILLAINS];
+	private final int[] yDelta = new int[MAX_VILLAINS];
+	/** Direction of the head (true if facing left) */
+	private final boolean[] lookLeft = new boolean[MAX_VILLAINS];
+	/** Number of heartBeats before the villain can move again */
+	private final int[] delayBusy = new int[MAX_VILLAINS];
+	/** Current and next requested moves, MOVE_* move constants */
+	private final int[] currentMove = new int[MAX_VILLAINS];
+	private final int[] nextMove = new int[MAX_VILLAINS];
+	/** Is the villain trapped in a dug hole? (see LodeRunnerVillain.isTrapped) */
+	private final boolean[] isTrapped = new boolean[MAX_VILLAINS];
+	/** Number of chests held */
+	private final int[] nChests = new int[MAX_VILLAINS];
+	/** Tile index and respawning state the villain is counted with in the stage occupancy grid */
+	private final int[] countedTileIndex = new int[MAX_VILLAINS];
+	private final boolean[] countedRespawning = new boolean[MAX_VILLAINS];
+
+	public VillainPool(LodeRunnerStage stage) {
+		this.stage = stage;
+	}
+
+	/** Forget every villain */
+	public synchronized void clear() {
+		count = 0;
+	}
+
+	/** Number of villains */
+	public synchronized int size() {
+		return count;
+	}
+
+	/** Add a villain at a given tile index, and count it in the stage occupancy grid */
+	public synchronized void add(int tileIndex) {
+		int v = count++;
+		nChests[v] = 0;
+		isTrapped[v] = false;
+		moveToTile(v, tileIndex);
+		countedTileIndex[v] = LodeRunnerStage.getTileIndex(xTile[v], yTile[v]);
+		countedRespawning[v] = false;
+		stage.countVillain(countedTileIndex[v], false, 1);
+	}
+
+	/** Position a villain at a given tile index */
+	private void moveToTile(int v, int tileIndex) {
+		xTile[v] = tileIndex % LodeRunnerStage.STAGE_WIDTH;
+		yTile[v] = tileIndex / LodeRunnerStage.STAGE_WIDTH;
+		lookLeft[v] = true;
+		xAdjust[v] = yAdjust[v] = 0;
+		xDelta[v] = yDelta[v] = delayBusy[v] = 0;
+		currentMove[v] = LodeRunnerCharacter.MOVE_NONE;
+		nextMove[v] = LodeRunnerCharacter.MOVE_NONE;
+		isTrapped[v] = false;
+	}
+
+	/** Keep the stage occupancy grid in line with a villain's tile and respawning state */
+	private void updateCount(int v) {
+		int tileIndex = LodeRunnerStage.getTileIndex(xTile[v], yTile[v]);
+		boolean respawning = currentMove[v] == LodeRunnerVillain.MOVE_RESPAWN;
+		if (tileIndex != countedTileIndex[v] || respawning != countedRespawning[v]) {
+			stage.countVillain(countedTileIndex[v], countedRespawning[v], -1);
+			countedTileIndex[v] = tileIndex;
+			countedRespawning[v] = respawning;
+			stage.countVillain(tileIndex, respawning, 1);
+		}
+	}
+
+	/** Compute the sprite frame number for painting a villain */
+	private int getFrame(int v) {
+		// When respawning
+		if (currentMove[v] == LodeRunnerVillain.MOVE_RESPAWN) {
+			return delayBusy[v] > LodeRunnerVillain.DELAY_RESPAWN / 2 ? 76 : 77;
+		}
+		// When trapped into a dug hole, falling sprites first, then running sprites just before climbing out
+		if (isTrapped[v] && currentMove[v] == LodeRunnerCharacter.MOVE_NONE) {
+			if (delayBusy[v] > LodeRunnerVillain.DELAY_RESPAWN) {
+				return lookLeft[v] ? keyFrames[0] + 5 : keyFrames[0] + 6;
+			}
+			return getRunFrame(v, delayBusy[v] % 2);
+		}
+		if (yDelta[v] != 0) {
+			if (currentMove[v] == LodeRunnerCharacter.MOVE_FALL_DOWN) {
+				return lookLeft[v] ? keyFrames[0] + 5 : keyFrames[0] + 6;
+			}
+			return keyFrames[0] + (yAdjust[v] + 5) % 5;
+		}
+		int frame = xDelta[v] >= 0 ? (xAdjust[v] + 6) % 6 : (6 - xAdjust[v]) % 6;
+		if (stage.getTileBehavior(xTile[v], yTile[v]) == LodeRunnerStage.TILE_ROPE) {
+			return lookLeft[v] ? frame + keyFrames[0] + 13 : frame + keyFrames[0] + 7;
+		}
+		return getRunFrame(v, frame);
+	}
+
+	/** Running sprite frame number, given the frame within the run */
+	private int getRunFrame(int v, int frame) {
+		if (lookLeft[v] && frame == 0) {
+			return keyFrames[1];
+		} else if (lookLeft[v]) {
+			return frame + keyFrames[3];
+		}
+		return frame + keyFrames[2];
+	}
+
+	/** Get the X left position of a villain in pixels */
+	private int getX(int v) {
+		if (xDelta[v] >= 0) {
+			return (6 * xTile[v] + xAdjust[v] + (xAdjust[v] + 6) % 2) * LodeRunnerStage.SPRITE_WIDTH / 6;
+		} else {
+			return (6 * xTile[v] + xAdjust[v] - (6 - xAdjust[v]) % 2) * LodeRunnerStage.SPRITE_WIDTH / 6;
+		}
+	}
+
+	/** Get the Y top position of a villain in pixels */
+	private int getY(int v) {
+		return (5 * yTile[v] + yAdjust[v]) * LodeRunnerStage.SPRITE_HEIGHT / 5;
+	}
+
+	/** Set the given move as current for a villain. Compute directions for that move. */
+	private void setCurrentMove(int v, int move) {
+		switch (currentMove[v] = move) {
+			case LodeRunnerCharacter.MOVE_NONE:
+				xDelta[v] = 0;
+				yDelta[v] = 0;
+				break;
+			case LodeRunnerCharacter.MOVE_RUN_LEFT:
+				lookLeft[v] = true;
+				xDelta[v] = -1;
+				yDelta[v] = 0;
+				break;
+			case LodeRunnerCharacter.MOVE_RUN_RIGHT:
+				lookLeft[v] = false;
+				xDelta[v] = 1;
+				yDelta[v] = 0;
+				break;
+			case LodeRunnerCharacter.MOVE_CLIMB_UP:
+			case LodeRunnerVillain.MOVE_CLIMB_HOLE:
+				xDelta[v] = 0;
+				yDelta[v] = -1;
+				break;
+			case LodeRunnerCharacter.MOVE_CLIMB_DOWN:
+			case LodeRunnerCharacter.MOVE_FALL_DOWN:
+				xDelta[v] = 0;
+				yDelta[v] = 1;
+				break;
+		}
+		updateCount(v);
+	}
+
+	/** Check if a villain should fall (not when trapped, nor on top of another trapped villain) */
+	private boolean shouldFall(int v) {
+		int x = xTile[v], y = yTile[v];
+		return (stage.getMoveMask(x, y) & LodeRunnerStage.MASK_FALL) != 0 && !isTrapped[v]
+				&& !(stage.isVilainAt(x, y + 1) && stage.getTile(x, y + 1) == LodeRunnerStage.TILE_HOLE_EMPTY);
+	}
+
+	/** Get the exact reverse of a villain's current move, if reversible */
+	private int getReverseMove(int v) {
+		switch (currentMove[v]) {
+			case LodeRunnerCharacter.MOVE_RUN_LEFT:
+				return LodeRunnerCharacter.MOVE_RUN_RIGHT;
+			case LodeRunnerCharacter.MOVE_RUN_RIGHT:
+				return LodeRunnerCharacter.MOVE_RUN_LEFT;
+			case LodeRunnerCharacter.MOVE_CLIMB_UP:
+				return LodeRunnerCharacter.MOVE_CLIMB_DOWN;
+			case LodeRunnerCharacter.MOVE_CLIMB_DOWN:
+				return LodeRunnerCharacter.MOVE_CLIMB_UP;
+			default:
+				return LodeRunnerCharacter.MOVE_NONE;
+		}
+	}
+
+	/** Execute a villain's next move when not trapped (see LodeRunnerCharacter.makeNextMove) */
+	private void makeFreeMove(int v) {
+		boolean shouldFall = shouldFall(v);
+		// Attempt to take a chest if not just falling, a villain can hold only one chest
+		if ((currentMove[v] == LodeRunnerCharacter.MOVE_FALL_DOWN || !shouldFall) && nChests[v] == 0
+				&& stage.getTile(xTile[v], yTile[v]) == LodeRunnerStage.TILE_CHEST) {
+			nChests[v]++;
+			stage.setTile(xTile[v], yTile[v], LodeRunnerStage.TILE_VOID);
+		}
+		if (shouldFall) {
+			nextMove[v] = LodeRunnerCharacter.MOVE_FALL_DOWN;
+		} else {
+			nextMove[v] = LodeRunnerVillain.computeNextMove(stage, xTile[v], yTile[v], nextMove[v]);
+		}
+		setCurrentMove(v, nextMove[v]);
+		// Always stop moving after a fall
+		if (nextMove[v] == LodeRunnerCharacter.MOVE_FALL_DOWN) {
+			nextMove[v] = LodeRunnerCharacter.MOVE_NONE;
+		}
+	}
+
+	/** Execute a villain's next move (see LodeRunnerVillain.makeNextMove) */
+	private void makeNextMove(int v) {
+		if (isTrapped[v]) {
+			// - he has fallen into a trap
+			if (currentMove[v] == LodeRunnerCharacter.MOVE_FALL_DOWN) {
+				delayBusy[v] = LodeRunnerVillain.DELAY_TRAPPED_HOLE;
+				setCurrentMove(v, LodeRunnerCharacter.MOVE_NONE);
+				nextMove[v] = LodeRunnerVillain.MOVE_CLIMB_HOLE;
+			} // - he can escape the trap
+			else if (nextMove[v] == LodeRunnerVillain.MOVE_CLIMB_HOLE) {
+				if (LodeRunnerVillain.isPossibleMove(stage, xTile[v], yTile[v], LodeRunnerVillain.MOVE_CLIMB_HOLE)) {
+					setCurrentMove(v, LodeRunnerVillain.MOVE_CLIMB_HOLE);
+					nextMove[v] = LodeRunnerCharacter.MOVE_NONE;
+				} else {
+					delayBusy[v] = LodeRunnerVillain.DELAY_RETRY_LATER;
+					setCurrentMove(v, LodeRunnerCharacter.MOVE_NONE);
+					nextMove[v] = LodeRunnerVillain.MOVE_CLIMB_HOLE;
+				}
+			} // - he has escaped the trap
+			else if (currentMove[v] == LodeRunnerVillain.MOVE_CLIMB_HOLE) {
+				nextMove[v] = LodeRunnerCharacter.MOVE_NONE;
+				makeFreeMove(v);
+				isTrapped[v] = false;
+			}
+		} // respawning, but the tile is taken
+		else if (currentMove[v] == LodeRunnerVillain.MOVE_RESPAWN && stage.isVilainAt(xTile[v], yTile[v])) {
+			delayBusy[v] = LodeRunnerVillain.DELAY_RETRY_LATER;
+		} else {
+			makeFreeMove(v);
+		}
+		if (!isTrapped[v]) {
+			int x = xTile[v], y = yTile[v];
+			// Check if he should fall in a trap
+			if (currentMove[v] == LodeRunnerCharacter.MOVE_FALL_DOWN && stage.getTile(x, y + 1) == LodeRunnerStage.TILE_HOLE_EMPTY) {
+				isTrapped[v] = true;
+				nextMove[v] = LodeRunnerCharacter.MOVE_NONE;
+			}
+			// Drop the chest, if appropriate (see LodeRunnerVillain.dropChest)
+			boolean canDrop = nChests[v] > 0 && stage.getTile(x, y) == LodeRunnerStage.TILE_VOID;
+			if (canDrop && !isTrapped[v]) {
+				canDrop = currentMove[v] != LodeRunnerCharacter.MOVE_FALL_DOWN && stage.random.nextBoolean(6);
+				if (canDrop) {
+					int bottomType = stage.getTileBehavior(x, y + 1);
+					canDrop = bottomType == LodeRunnerStage.TILE_BRICK || bottomType == LodeRunnerStage.TILE_CONCRETE || bottomType == LodeRunnerStage.TILE_LADDER;
+				}
+			}
+			if (canDrop) {
+				nChests[v]--;
+				stage.setTile(x, y, LodeRunnerStage.TILE_CHEST);
+			}
+		}
+	}
+
+	/** Compute the next position of a villain. Returns false if blocked by another villain. */
+	private boolean computeNewPosition(int v) {
+		int xNewTile = xTile[v], yNewTile = yTile[v];
+		int xNewAdjust = xAdjust[v] + xDelta[v], yNewAdjust = yAdjust[v] + yDelta[v];
+		if (xNewAdjust < -3) {
+			xNewAdjust += 6;
+			xNewTile--;
+		} else if (xNewAdjust > 3) {
+			xNewAdjust -= 6;
+			xNewTile++;
+		}
+		if (yNewAdjust < -2) {
+			yNewAdjust += 5;
+			yNewTile--;
+		} else if (yNewAdjust > 2) {
+			yNewAdjust -= 5;
+			yNewTile++;
+		}
+		// Don't run into another villain
+		boolean hasMoved = (xNewTile == xTile[v] && yNewTile == yTile[v]) || !stage.isVilainAt(xNewTile, yNewTile);
+		if (hasMoved) {
+			xTile[v] = xNewTile;
+			yTile[v] = yNewTile;
+			xAdjust[v] = xNewAdjust;
+			yAdjust[v] = yNewAdjust;
+		} else {
+			// Don't stay stuck, rather try going backwards on occasion
+			int reverseMove = getReverseMove(v);
+			if (reverseMove != LodeRunnerCharacter.MOVE_NONE && stage.random.nextBoolean(3)) {
+				setCurrentMove(v, reverseMove);
+			}
+		}
+		updateCount(v);
+		return hasMoved;
+	}
+
+	/** Kill a villain, he respawns somewhere at random */
+	private void kill(int v) {
+		moveToTile(v, stage.computeRandomRespawnPoint());
+		currentMove[v] = LodeRunnerVillain.MOVE_RESPAWN;
+		delayBusy[v] = LodeRunnerVillain.DELAY_RESPAWN;
+		updateCount(v);
+	}
+
+	/** Mark the area where a villain is rendered as changed */
+	private void markDirty(int v) {
+		stage.dirtyRegion.add(getX(v), getY(v), LodeRunnerStage.SPRITE_WIDTH, LodeRunnerStage.SPRITE_HEIGHT);
+	}
+
+	/** Heartbeat for a villain (see LodeRunnerVillain.heartBeat and LodeRunnerCharacter.heartBeat) */
+	private void heartBeat(int v) {
+		// Special animation before escaping a hole
+		if (isTrapped[v] && currentMove[v] == LodeRunnerCharacter.MOVE_NONE && delayBusy[v] <= LodeRunnerVillain.DELAY_RESPAWN) {
+			lookLeft[v] = delayBusy[v] / 2 % 2 == 0;
+		}
+		markDirty(v);
+		// Inside plain brick, he should die
+		if (stage.getTileBehavior(xTile[v], yTile[v]) == LodeRunnerStage.TILE_BRICK) {
+			kill(v);
+			markDirty(v);
+			return;
+		}
+		if (delayBusy[v] > 0) {
+			delayBusy[v]--;
+			return;
+		}
+		// If the current move has ended, execute the next move
+		if (xAdjust[v] == 0 && yAdjust[v] == 0) {
+			makeNextMove(v);
+		}
+		computeNewPosition(v);
+		markDirty(v);
+	}
+
+	/** Heartbeat for every villain, in order */
+	public synchronized void heartBeatAll() {
+		for (int v = 0; v < count; v++) {
+			heartBeat(v);
+		}
+	}
+
+	/** Record the rendering of every villain */
+	public synchronized void record(DisplayList list) {
+		for (int v = 0; v < count; v++) {
+			int centerX = (6 * xTile[v] + xAdjust[v] + 3) * LodeRunnerStage.SPRITE_WIDTH / 6;
+			int centerY = (5 * yTile[v] + yAdjust[v] + 3) * LodeRunnerStage.SPRITE_HEIGHT / 5;
+			list.addVillain(getFrame(v), getX(v), getY(v), centerX, centerY);
+		}
+	}
+}
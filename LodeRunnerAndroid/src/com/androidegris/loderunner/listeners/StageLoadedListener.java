@@ -0,0 +1,5 @@
+package com.androidegris.loderunner.listeners;
+
+public interface StageLoadedListener {
+	void stageLoaded();
+}
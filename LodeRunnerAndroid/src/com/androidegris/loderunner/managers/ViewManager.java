@@ -61,6 +61,8 @@ public class ViewManager {
 	private List<Button> menuButtons;
 	private GameManager gameManager;
 	private TextView doneTextView;
+	/** Resize the stage by a whole number only, so that every pixel has the same size (see R.bool.integer_scaling) */
+	private boolean integerScaling;
 		
 
 	public ViewManager(LodeRunnerActivity lodeRunnerActivity, GameManager gameManager, RelativeLayout relativeLayout, LodeRunnerView lodeRunnerView) {
@@ -73,8 +75,13 @@ public class ViewManager {
 		this.menuButtons = new ArrayList<Button>();		
 	
 		this.doneTextView = new TextView(lodeRunnerActivity);
+		this.integerScaling = lodeRunnerActivity.getResources().getBoolean(R.bool.integer_scaling);
 		
 	}
+
+	public void setIntegerScaling(boolean integerScaling) {
+		this.integerScaling = integerScaling;
+	}
 	
 	public Runnable init(){
 		return new Runnable() {
@@ -88,7 +95,7 @@ public class ViewManager {
 				
 				createSwipeDetector(drawingWidth);
 				
-				Rect gameRect = createGameView(drawingWidth, drawingHeight);
+				Rect gameRect = createGameView(drawingWidth, drawingHeight, integerScaling);
 				
 				createPlayWidgets(drawingWidth, drawingHeight, gameRect);
 				
@@ -103,7 +110,7 @@ public class ViewManager {
 		};
 	}
 	
-	private Rect createGameView(int drawingWidth, int drawinHeigth) {
+	private Rect createGameView(int drawingWidth, int drawinHeigth, boolean integerScaling) {
 		int gameX = 0;
 		int gameY = 0;
 		int gameWidth = 0;
@@ -118,6 +125,9 @@ public class ViewManager {
 			float scaleX =  (float)drawingWidth / (float)LodeRunnerStage.STAGE_WIDTH_PIXELS;
 			float scaleY =  (float)drawinHeigth / (float)LodeRunnerStage.STAGE_HEIGHT_PIXELS;
 			float scale = Math.min(scaleX, scaleY);
+			if (integerScaling) {
+				scale = Math.max(1, (float) Math.floor(scale));
+			}
 			gameWidth = (int)(LodeRunnerStage.STAGE_WIDTH_PIXELS * scale);
 			gameHeigth = (int)(LodeRunnerStage.STAGE_HEIGHT_PIXELS * scale);		
 			lodeRunnerView.setScale(scale);			
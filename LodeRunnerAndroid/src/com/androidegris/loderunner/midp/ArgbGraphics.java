@@ -0,0 +1,163 @@
+package com.androidegris.loderunner.midp;
+
+/**
+ * Graphics drawing into the pixels of an ArgbImage. Doesn't need Android.
+ */
+public class ArgbGraphics extends Graphics {
+
+	private final int[] pixels;
+	private final int width;
+	private final int height;
+	/** Drawn pixels bounds, untranslated */
+	private int clipLeft;
+	private int clipTop;
+	private int clipRight;
+	private int clipBottom;
+
+	public ArgbGraphics(ArgbImage image) {
+		this.pixels = image.getPixels();
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		clipRight = width;
+		clipBottom = height;
+	}
+
+	@Override
+	protected void readClip() {
+		clipX = clipLeft - translateX;
+		clipY = clipTop - translateY;
+		clipWidth = clipRight - clipLeft;
+		clipHeight = clipBottom - clipTop;
+	}
+
+	@Override
+	public void setClip(int x, int y, int width, int height) {
+		clipLeft = Math.max(x + translateX, 0);
+		clipTop = Math.max(y + translateY, 0);
+		clipRight = Math.max(clipLeft, Math.min(x + translateX + width, this.width));
+		clipBottom = Math.max(clipTop, Math.min(y + translateY + height, this.height));
+		invalidateClip();
+	}
+
+	@Override
+	public void drawFrame(Image frame, int x_dest, int y_dest) {
+		ArgbImage source = (ArgbImage) frame;
+		int[] sourcePixels = source.getPixels();
+		int sourceWidth = source.getWidth();
+		int x = x_dest + translateX;
+		int y = y_dest + translateY;
+		int left = Math.max(x, clipLeft);
+		int top = Math.max(y, clipTop);
+		int right = Math.min(x + sourceWidth, clipRight);
+		int bottom = Math.min(y + source.getHeight(), clipBottom);
+		for (int row = top; row < bottom; row++) {
+			int sourceIndex = (row - y) * sourceWidth + left - x;
+			int index = row * width + left;
+			for (int column = left; column < right; column++) {
+				int pixel = sourcePixels[sourceIndex++];
+				if ((pixel & 0xff000000) != 0) {
+					pixels[index] = pixel;
+				}
+				index++;
+			}
+		}
+	}
+
+	@Override
+	public void drawScaledImage(Image image, int x_dest, int y_dest, int width_dest, int height_dest) {
+		ArgbImage source = (ArgbImage) image;
+		int[] sourcePixels = source.getPixels();
+		int sourceWidth = source.getWidth();
+		// source steps per surface pixel, 16.16 fixed point
+		int stepX = (sourceWidth << 16) / width_dest;
+		int stepY = (source.getHeight() << 16) / height_dest;
+		int x = x_dest + translateX;
+		int y = y_dest + translateY;
+		int left = Math.max(x, clipLeft);
+		int top = Math.max(y, clipTop);
+		int right = Math.min(x + width_dest, clipRight);
+		int bottom = Math.min(y + height_dest, clipBottom);
+		int previousSourceRow = -1;
+		for (int row = top; row < bottom; row++) {
+			int index = row * width + left;
+			int sourceRow = ((row - y) * stepY) >> 16;
+			if (sourceRow == previousSourceRow) {
+				// enlarged rows are identical, copy the one above
+				System.arraycopy(pixels, index - width, pixels, index, right - left);
+				continue;
+			}
+			previousSourceRow = sourceRow;
+			int sourceIndex = sourceRow * sourceWidth;
+			int sourceX = (left - x) * stepX;
+			for (int column = left; column < right; column++) {
+				pixels[index++] = sourcePixels[sourceIndex + (sourceX >> 16)];
+				sourceX += stepX;
+			}
+		}
+	}
+
+	private void setPixel(int x, int y) {
+		x += translateX;
+		y += translateY;
+		if (x >= clipLeft && x < clipRight && y >= clipTop && y < clipBottom) {
+			pixels[y * width + x] = color;
+		}
+	}
+
+	@Override
+	public void drawLine(int startX, int startY, int stopX, int stopY) {
+		// Bresenham
+		int dx = Math.abs(stopX - startX);
+		int dy = -Math.abs(stopY - startY);
+		int stepX = startX < stopX ? 1 : -1;
+		int stepY = startY < stopY ? 1 : -1;
+		int error = dx + dy;
+		int x = startX;
+		int y = startY;
+		while (true) {
+			setPixel(x, y);
+			if (x == stopX && y == stopY) {
+				break;
+			}
+			int error2 = 2 * error;
+			if (error2 >= dy) {
+				error += dy;
+				x += stepX;
+			}
+			if (error2 <= dx) {
+				error += dx;
+				y += stepY;
+			}
+		}
+	}
+
+	@Override
+	public void fillRect(int x, int y, int width, int height) {
+		x += translateX;
+		y += translateY;
+		int left = Math.max(x, clipLeft);
+		int top = Math.max(y, clipTop);
+		int right = Math.min(x + width, clipRight);
+		int bottom = Math.min(y + height, clipBottom);
+		for (int row = top; row < bottom; row++) {
+			int index = row * this.width + left;
+			for (int column = left; column < right; column++) {
+				pixels[index++] = color;
+			}
+		}
+	}
+
+	@Override
+	public void drawRect(int x, int y, int width, int height) {
+		drawLine(x, y, x + width, y);
+		drawLine(x + width, y, x + width, y + height);
+		drawLine(x + width, y + height, x, y + height);
+		drawLine(x, y + height, x, y);
+	}
+
+	@Override
+	protected void translateSurface(int x, int y) {
+		// translation is applied when drawing
+	}
+
+}
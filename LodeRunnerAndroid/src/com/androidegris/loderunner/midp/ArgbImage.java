@@ -0,0 +1,77 @@
+package com.androidegris.loderunner.midp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Image holding plain ARGB pixels. Doesn't need Android, so that rendering can
+ * run (and be measured) on any JVM. Pixels with a zero alpha are transparent,
+ * any other pixel is opaque.
+ */
+public class ArgbImage extends Image {
+
+	public static final Factory FACTORY = new Factory() {
+		public Image createImage(InputStream inputStream) throws IOException {
+			return PngDecoder.decode(inputStream);
+		}
+
+		public Image createImage(int width, int height) {
+			int[] pixels = new int[width * height];
+			Arrays.fill(pixels, 0xff000000);
+			return new ArgbImage(pixels, width, height, true);
+		}
+
+		public Image createTransparentImage(int width, int height) {
+			return new ArgbImage(new int[width * height], width, height, true);
+		}
+	};
+
+	private final int[] pixels;
+	private final int width;
+	private final int height;
+	private final ArgbGraphics graphics;
+
+	/** Wraps the given pixels (row by row, width * height) */
+	public ArgbImage(int[] pixels, int width, int height, boolean mutable) {
+		this.pixels = pixels;
+		this.width = width;
+		this.height = height;
+		// only mutable images can be drawn into
+		if (mutable) {
+			this.graphics = new ArgbGraphics(this);
+		} else {
+			this.graphics = null;
+		}
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public Graphics getGraphics() {
+		return graphics;
+	}
+
+	/** Pixels of this image, row by row. Changes are visible in the image. */
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	@Override
+	public Image getRegion(int x, int y, int width, int height) {
+		int[] region = new int[width * height];
+		for (int row = 0; row < height; row++) {
+			System.arraycopy(pixels, (y + row) * this.width + x, region, row * width, width);
+		}
+		return new ArgbImage(region, width, height, false);
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.androidegris.loderunner.midp;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.graphics.Rect;
+import android.graphics.Region;
+import android.util.SparseArray;
+
+/**
+ * Graphics drawing on an Android canvas
+ */
+public class CanvasGraphics extends Graphics {
+
+	private Canvas canvas;
+	private Paint nextPaint;
+	private SparseArray<Paint> paints = new SparseArray<Paint>();
+	/** reused for every clip capture, so reading the clip never allocates */
+	private final Rect clipBounds = new Rect();
+	/** reused by drawScaledImage */
+	private final Rect scaledBounds = new Rect();
+	private final Paint scaledPaint = new Paint();
+
+	public CanvasGraphics() {
+		setColor(0);
+		// nearest neighbour
+		scaledPaint.setFilterBitmap(false);
+		scaledPaint.setDither(false);
+	}
+
+	public CanvasGraphics(Canvas canvas) {
+		this();
+		setCanvas(canvas);
+	}
+
+	public void setCanvas(Canvas canvas) {
+		this.canvas = canvas;
+		// a new canvas has no translation
+		translateX = 0;
+		translateY = 0;
+		invalidateClip();
+	}
+
+	@Override
+	protected void readClip() {
+		canvas.getClipBounds(clipBounds);
+		clipX = clipBounds.left;
+		clipY = clipBounds.top;
+		clipWidth = clipBounds.right - clipBounds.left;
+		clipHeight = clipBounds.bottom - clipBounds.top;
+	}
+
+	@Override
+	public void setClip(int x, int y, int width, int height) {
+		canvas.clipRect(x, y, x + width, y + height, Region.Op.REPLACE);
+		invalidateClip();
+	}
+
+	@Override
+	public void drawFrame(Image frame, int x_dest, int y_dest) {
+		canvas.drawBitmap(((CanvasImage) frame).getBitmap(), x_dest, y_dest, null);
+	}
+
+	@Override
+	public void drawScaledImage(Image image, int x_dest, int y_dest, int width_dest, int height_dest) {
+		scaledBounds.set(x_dest, y_dest, x_dest + width_dest, y_dest + height_dest);
+		canvas.drawBitmap(((CanvasImage) image).getBitmap(), null, scaledBounds, scaledPaint);
+	}
+
+	@Override
+	public void setColor(int color) {
+		super.setColor(color);
+		nextPaint = findPaint(this.color);
+	}
+
+	private Paint findPaint(int color) {		
+		Paint paintFound = paints.get(color);
+		if (paintFound == null) {
+			paintFound = new Paint();
+			paintFound.setColor(color);
+			paints.put(color, paintFound);
+		}
+		return paintFound;
+	}
+
+	@Override
+	public void drawLine(int startX, int startY, int stopX, int stopY) {
+		nextPaint.setStyle(Style.STROKE);
+		canvas.drawLine(startX, startY, stopX, stopY, nextPaint);
+	}
+
+	@Override
+	public void fillRect(int x, int y, int width, int height) {
+		nextPaint.setStyle(Style.FILL);
+		canvas.drawRect(x, y, x + width, y + height, nextPaint);
+	}
+
+	@Override
+	public void drawRect(int x, int y, int width, int height) {
+		nextPaint.setStyle(Style.STROKE);
+		canvas.drawRect(x, y, x + width, y + height, nextPaint);
+	}
+
+	@Override
+	protected void translateSurface(int x, int y) {
+		canvas.translate(x, y);
+	}
+
+}
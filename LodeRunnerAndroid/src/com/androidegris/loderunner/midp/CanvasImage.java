@@ -0,0 +1,65 @@
+package com.androidegris.loderunner.midp;
+
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+
+/**
+ * Image holding an Android bitmap
+ */
+public class CanvasImage extends Image {
+
+	public static final Factory FACTORY = new Factory() {
+		public Image createImage(InputStream inputStream) {
+			return new CanvasImage(BitmapFactory.decodeStream(inputStream));
+		}
+
+		public Image createImage(int width, int height) {
+			return new CanvasImage(Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565));
+		}
+
+		public Image createTransparentImage(int width, int height) {
+			return new CanvasImage(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+		}
+	};
+
+	private final Bitmap bitmap;
+	private final CanvasGraphics graphics;
+
+	public CanvasImage(Bitmap bitmap) {
+		this.bitmap = bitmap;
+		// only mutable images can be drawn into
+		if(bitmap.isMutable()){
+			this.graphics = new CanvasGraphics(new Canvas(bitmap));
+		}else{
+			this.graphics = null;
+		}
+	}
+
+	@Override
+	public int getWidth() {
+		return this.bitmap.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return this.bitmap.getHeight();
+	}
+
+	@Override
+	public Graphics getGraphics() {
+		return graphics;
+	}
+
+	public Bitmap getBitmap() {
+		return this.bitmap;
+	}
+
+	@Override
+	public Image getRegion(int x, int y, int width, int height) {
+		return new CanvasImage(Bitmap.createBitmap(this.bitmap, x, y, width, height));
+	}
+
+}
@@ -1,12 +1,12 @@
 package com.androidegris.loderunner.midp;
 
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
-import android.util.SparseArray;
-
-public class Graphics {
+/**
+ * MIDP like drawing surface, in surface pixels. Only drawScaledImage resizes.
+ * 
+ * CanvasGraphics draws on an Android canvas, ArgbGraphics draws on a plain
+ * ARGB pixel array and doesn't need Android at all.
+ */
+public abstract class Graphics {
 
 	public static final int HCENTER = 1;
 	public static final int VCENTER = 2;
@@ -15,121 +15,126 @@ public class Graphics {
 	public static final int TOP = 16;
 	public static final int BOTTOM = 32;
 
-	private Canvas canvas;
-	private Paint nextPaint;
-	private SparseArray<Paint> paints = new SparseArray<Paint>();
-	private float scale = 1.0f;
-	private boolean paning = false;
+	/** current color, always opaque */
+	protected int color = 0xff000000;
+	protected boolean paning = false;
+	protected int translateX = 0;
+	protected int translateY = 0;
+
+	/** clip bounds, set by readClip */
+	protected int clipX;
+	protected int clipY;
+	protected int clipWidth;
+	protected int clipHeight;
+	private boolean clipValid = false;
+	/** clip queries answered since the last reset */
+	private int clipQueries = 0;
+	/** clip captures from the surface since the last reset (none of them allocates) */
+	private int clipCaptures = 0;
+
+	/**
+	 * Forgets the captured clip bounds. Must be called whenever the surface
+	 * clip or translation is changed behind this Graphics' back.
+	 */
+	public void invalidateClip() {
+		clipValid = false;
+	}
+
+	/** Reads the surface clip into clipX, clipY, clipWidth and clipHeight, without allocating */
+	protected abstract void readClip();
 
-	public void setCanvas(Canvas canvas) {
-		this.canvas = canvas;
+	private void captureClip() {
+		clipQueries++;
+		if (!clipValid) {
+			readClip();
+			clipValid = true;
+			clipCaptures++;
+		}
 	}
 
 	public int getClipX() {
-		return canvas.getClipBounds().left;
+		captureClip();
+		return clipX;
 	}
 
 	public int getClipY() {
-		return canvas.getClipBounds().top;
+		captureClip();
+		return clipY;
 	}
 
 	public int getClipWidth() {
-		return canvas.getClipBounds().right - canvas.getClipBounds().left;
+		captureClip();
+		return clipWidth;
 	}
 
 	public int getClipHeight() {
-		return canvas.getClipBounds().bottom - canvas.getClipBounds().top;
+		captureClip();
+		return clipHeight;
 	}
 
-	/*
-	 * g.drawRegion(frames, (frameNumber % framesCountX) * frameWidth,
-	 * (frameNumber / framesCountX) * frameHeight, frameWidth, frameHeight, 0,
-	 * x, y, Graphics.TOP | Graphics.LEFT);
-	 */
-	public void drawRegion(Image src, int x_src, int y_src, int width, int height, int transform, int x_dest,
-			int y_dest, int anchor) {
-		Bitmap bitmap = src.getBitmap(x_src, y_src, width, height);		
-		Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, (int)(width * scale), (int)(height * scale), false);
-		canvas.drawBitmap(scaledBitmap, x_dest * scale, y_dest * scale , null);
+	public int getClipQueries() {
+		return clipQueries;
 	}
 
+	public int getClipCaptures() {
+		return clipCaptures;
+	}
 
+	public void resetClipCounters() {
+		clipQueries = 0;
+		clipCaptures = 0;
+	}
 
-	public void setColor(int color) {
-		color += 0xff000000;
-		nextPaint = findPaint(color);
+	/** Sets the clip to a rectangle, replacing the previous one */
+	public abstract void setClip(int x, int y, int width, int height);
 
-	}
+	/** Draws an image as is, transparent pixels excepted */
+	public abstract void drawFrame(Image frame, int x_dest, int y_dest);
 
-	private Paint findPaint(int color) {		
-		Paint paintFound = paints.get(color);
-		if (paintFound == null) {
-			paintFound = new Paint();
-			paintFound.setColor(color);
-			paints.put(color, paintFound);
-		}
-		return paintFound;
-	}
+	/**
+	 * Draws a whole image resized to the given rectangle, in surface pixels,
+	 * with nearest neighbour sampling so pixel art stays crisp. Pixels are
+	 * copied as is, without transparency.
+	 */
+	public abstract void drawScaledImage(Image image, int x_dest, int y_dest, int width_dest, int height_dest);
 
-	public void drawLine(int startX, int startY, int stopX, int stopY) {
-		nextPaint.setStyle(Style.STROKE);
-		canvas.drawLine(startX, startY, stopX, stopY, nextPaint);
+	public void setColor(int color) {
+		this.color = color | 0xff000000;
 	}
 
-	public void fillRect(int x, int y, int width, int height) {
-		nextPaint.setStyle(Style.FILL);
-		canvas.drawRect(x, y, width, height, nextPaint);
+	public abstract void drawLine(int startX, int startY, int stopX, int stopY);
 
-	}
+	public abstract void fillRect(int x, int y, int width, int height);
 
-	public void drawRect(int x, int y, int width, int height) {
-		nextPaint.setStyle(Style.STROKE);
-		canvas.drawRect(x, y, width, height, nextPaint);
+	public abstract void drawRect(int x, int y, int width, int height);
 
-	}
-	
+	/** Moves the surface origin, only while paning */
 	public void translate(int x, int y) {
-		if(paning){
-			canvas.translate(x, y);
+		if (paning) {
+			translateX += x;
+			translateY += y;
+			translateSurface(x, y);
+			invalidateClip();
 		}
-	}	
-
-	public int getTranslateX() {
-		return 0;
 	}
 
-	public int getTranslateY() {
-		return 0;
-	}
+	protected abstract void translateSurface(int x, int y);
 
-	// g.drawImage(backgroundImage, 0, 0, Graphics.TOP | Graphics.LEFT);
-	public void drawImage(Image img, int x, int y, int anchor) {
-		Bitmap bitmap = img.getBitmap();
-		Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, (int)(bitmap.getWidth() * scale), (int)(bitmap.getHeight() * scale), false);
-		canvas.drawBitmap(scaledBitmap, x , y , null);
+	public int getTranslateX() {
+		return translateX;
 	}
 
-
-	public void drawString(String pauseMessage, int i, int j, int k) {
-		// TODO Auto-generated method stub
-
+	public int getTranslateY() {
+		return translateY;
 	}
 
-	public void fillRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
-		nextPaint.setStyle(Style.FILL);
-		canvas.drawRect(x, y, width, height, nextPaint);
+	public void setPaning(boolean paning) {
+		this.paning = paning;
 	}
 
-	public void setScale(float scale) {
-		if(this.scale != scale){
-			this.scale = scale;	
-			this.canvas.scale(scale,  scale);
-		}
-	}
-	
-	
-	public void setPaning(boolean paning){
-		this.paning = paning;
+	/** Whether the surface shows only a part of the stage */
+	public boolean isPaning() {
+		return paning;
 	}
 
 }
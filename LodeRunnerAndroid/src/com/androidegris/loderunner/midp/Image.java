@@ -1,51 +1,60 @@
 package com.androidegris.loderunner.midp;
 
+import java.io.IOException;
 import java.io.InputStream;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
+/**
+ * MIDP like image. CanvasImage holds an Android bitmap, ArgbImage holds a
+ * plain ARGB pixel array. Static factory methods create images of the kind
+ * set with setFactory, which the application entry point calls before any
+ * image is created (LodeRunnerActivity for Android bitmaps).
+ */
+public abstract class Image {
 
-public class Image {
-	private final Bitmap bitmap;
-	private final Graphics graphics;
+	/** Creates images of one kind */
+	public interface Factory {
+		Image createImage(InputStream inputStream) throws IOException;
 
-	private Image(Bitmap bitmap) {
-		this.bitmap = bitmap;
-		this.graphics = new Graphics();
-		if(bitmap.isMutable()){
-			this.graphics.setCanvas(new Canvas(bitmap));
-		}
-	}
+		Image createImage(int width, int height);
 
-	public int getWidth() {
-		return this.bitmap.getWidth();
+		Image createTransparentImage(int width, int height);
 	}
 
-	public int getHeight() {
-		return this.bitmap.getHeight();
+	private static Factory factory = null;
+
+	public static void setFactory(Factory factory) {
+		Image.factory = factory;
 	}
 
-	public Graphics getGraphics() {
-		return graphics;
+	private static Factory getFactory() {
+		if (factory == null) {
+			throw new IllegalStateException("No image factory set");
+		}
+		return factory;
 	}
 
-	public static Image createImage(InputStream inputStream) {
-		Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-		return new Image(bitmap);
+	public static Image createImage(InputStream inputStream) throws IOException {
+		return getFactory().createImage(inputStream);
 	}
-	
+
+	/** Creates a new mutable, opaque image */
 	public static Image createImage(int width, int height) {
-		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-		return new Image(bitmap);
+		return getFactory().createImage(width, height);
 	}
 
-	public Bitmap getBitmap(int x, int y, int width, int height) {		
-		return Bitmap.createBitmap(this.bitmap, x, y, width, height);
+	/** Creates a new mutable image, fully transparent */
+	public static Image createTransparentImage(int width, int height) {
+		return getFactory().createTransparentImage(width, height);
 	}
 
-	public Bitmap getBitmap() {
-		return this.bitmap;
-	}
+	public abstract int getWidth();
+
+	public abstract int getHeight();
+
+	/** Graphics drawing into this image, null if this image is immutable */
+	public abstract Graphics getGraphics();
+
+	/** Creates a new immutable image from a region of this one */
+	public abstract Image getRegion(int x, int y, int width, int height);
 
 }
@@ -0,0 +1,216 @@
+package com.androidegris.loderunner.midp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Minimal PNG decoder for ArgbImage: every color type, bit depths up to 8
+ * (16 bits samples are truncated), no interlacing.
+ */
+final class PngDecoder {
+
+	private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504c5445;
+	private static final int TRNS = 0x74524e53;
+	private static final int IDAT = 0x49444154;
+	private static final int IEND = 0x49454e44;
+
+	private static final int COLOR_GRAY = 0;
+	private static final int COLOR_RGB = 2;
+	private static final int COLOR_PALETTE = 3;
+	private static final int COLOR_GRAY_ALPHA = 4;
+	private static final int COLOR_RGB_ALPHA = 6;
+
+	private PngDecoder() {
+	}
+
+	static ArgbImage decode(InputStream inputStream) throws IOException {
+		DataInputStream input = new DataInputStream(inputStream);
+		if (input.readLong() != SIGNATURE) {
+			throw new IOException("Not a PNG image");
+		}
+		int width = 0, height = 0, bitDepth = 0, colorType = 0;
+		int[] palette = new int[256];
+		int transparentKey = -1;
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		while (true) {
+			int length = input.readInt();
+			int type = input.readInt();
+			byte[] chunk = new byte[length];
+			input.readFully(chunk);
+			input.readInt(); // CRC
+			if (type == IHDR) {
+				width = readInt(chunk, 0);
+				height = readInt(chunk, 4);
+				bitDepth = chunk[8] & 0xff;
+				colorType = chunk[9] & 0xff;
+				if (chunk[12] != 0) {
+					throw new IOException("Interlaced PNG images are not supported");
+				}
+			} else if (type == PLTE) {
+				for (int i = 0; i < length / 3; i++) {
+					palette[i] = 0xff000000 | (chunk[3 * i] & 0xff) << 16 | (chunk[3 * i + 1] & 0xff) << 8 | (chunk[3 * i + 2] & 0xff);
+				}
+			} else if (type == TRNS) {
+				if (colorType == COLOR_PALETTE) {
+					for (int i = 0; i < length; i++) {
+						palette[i] = (chunk[i] & 0xff) << 24 | (palette[i] & 0xffffff);
+					}
+				} else if (colorType == COLOR_GRAY) {
+					// keys are stored on 16 bits, keep the same 8 bits as the samples
+					int gray = bitDepth == 16 ? chunk[0] & 0xff : (chunk[1] & 0xff) * 255 / ((1 << bitDepth) - 1);
+					transparentKey = gray << 16 | gray << 8 | gray;
+				} else if (colorType == COLOR_RGB) {
+					int low = bitDepth == 16 ? 0 : 1;
+					transparentKey = (chunk[low] & 0xff) << 16 | (chunk[2 + low] & 0xff) << 8 | (chunk[4 + low] & 0xff);
+				}
+			} else if (type == IDAT) {
+				compressed.write(chunk);
+			} else if (type == IEND) {
+				break;
+			}
+		}
+		int channels;
+		switch (colorType) {
+			case COLOR_RGB:
+				channels = 3;
+				break;
+			case COLOR_GRAY_ALPHA:
+				channels = 2;
+				break;
+			case COLOR_RGB_ALPHA:
+				channels = 4;
+				break;
+			default:
+				channels = 1;
+				break;
+		}
+		int bitsPerPixel = channels * bitDepth;
+		int stride = (width * bitsPerPixel + 7) / 8;
+		// filters work on bytes, with at least one byte per pixel
+		int filterOffset = Math.max(1, bitsPerPixel / 8);
+		byte[] raw = inflate(compressed.toByteArray(), height * (stride + 1));
+		int[] pixels = new int[width * height];
+		byte[] previous = new byte[stride];
+		byte[] row = new byte[stride];
+		for (int y = 0; y < height; y++) {
+			int filter = raw[y * (stride + 1)];
+			System.arraycopy(raw, y * (stride + 1) + 1, row, 0, stride);
+			unfilter(filter, row, previous, filterOffset);
+			for (int x = 0; x < width; x++) {
+				pixels[y * width + x] = toArgb(row, x, colorType, channels, bitDepth, palette, transparentKey);
+			}
+			byte[] swap = previous;
+			previous = row;
+			row = swap;
+		}
+		return new ArgbImage(pixels, width, height, false);
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+	}
+
+	private static byte[] inflate(byte[] compressed, int size) throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+		byte[] raw = new byte[size];
+		try {
+			int offset = 0;
+			while (offset < size && !inflater.finished()) {
+				int inflated = inflater.inflate(raw, offset, size - offset);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated PNG image data");
+				}
+				offset += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted PNG image data: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return raw;
+	}
+
+	private static void unfilter(int filter, byte[] row, byte[] previous, int offset) {
+		for (int i = 0; i < row.length; i++) {
+			int left = i >= offset ? row[i - offset] & 0xff : 0;
+			int up = previous[i] & 0xff;
+			int upLeft = i >= offset ? previous[i - offset] & 0xff : 0;
+			int predicted;
+			switch (filter) {
+				case 1:
+					predicted = left;
+					break;
+				case 2:
+					predicted = up;
+					break;
+				case 3:
+					predicted = (left + up) / 2;
+					break;
+				case 4:
+					predicted = paeth(left, up, upLeft);
+					break;
+				default:
+					predicted = 0;
+					break;
+			}
+			row[i] = (byte) (row[i] + predicted);
+		}
+	}
+
+	private static int paeth(int left, int up, int upLeft) {
+		int estimate = left + up - upLeft;
+		int distanceLeft = Math.abs(estimate - left);
+		int distanceUp = Math.abs(estimate - up);
+		int distanceUpLeft = Math.abs(estimate - upLeft);
+		if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+			return left;
+		}
+		return distanceUp <= distanceUpLeft ? up : upLeft;
+	}
+
+	/** Sample of the given channel of the given pixel, on 8 bits except for palette indexes */
+	private static int sample(byte[] row, int x, int channel, int channels, int bitDepth, boolean isIndex) {
+		if (bitDepth == 8) {
+			return row[x * channels + channel] & 0xff;
+		}
+		if (bitDepth == 16) {
+			return row[2 * (x * channels + channel)] & 0xff;
+		}
+		// packed samples (only for single channel images)
+		int bit = x * bitDepth;
+		int mask = (1 << bitDepth) - 1;
+		int value = (row[bit / 8] >> (8 - bitDepth - bit % 8)) & mask;
+		return isIndex ? value : value * 255 / mask;
+	}
+
+	private static int toArgb(byte[] row, int x, int colorType, int channels, int bitDepth, int[] palette, int transparentKey) {
+		int argb;
+		switch (colorType) {
+			case COLOR_PALETTE:
+				return palette[sample(row, x, 0, channels, bitDepth, true)];
+			case COLOR_GRAY: {
+				int gray = sample(row, x, 0, channels, bitDepth, false);
+				argb = gray << 16 | gray << 8 | gray;
+				return argb == transparentKey ? argb : 0xff000000 | argb;
+			}
+			case COLOR_GRAY_ALPHA: {
+				int gray = sample(row, x, 0, channels, bitDepth, false);
+				return sample(row, x, 1, channels, bitDepth, false) << 24 | gray << 16 | gray << 8 | gray;
+			}
+			case COLOR_RGB:
+				argb = sample(row, x, 0, channels, bitDepth, false) << 16 | sample(row, x, 1, channels, bitDepth, false) << 8
+						| sample(row, x, 2, channels, bitDepth, false);
+				return argb == transparentKey ? argb : 0xff000000 | argb;
+			default:
+				return sample(row, x, 3, channels, bitDepth, false) << 24 | sample(row, x, 0, channels, bitDepth, false) << 16
+						| sample(row, x, 1, channels, bitDepth, false) << 8 | sample(row, x, 2, channels, bitDepth, false);
+		}
+	}
+}
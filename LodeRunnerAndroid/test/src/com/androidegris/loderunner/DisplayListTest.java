@@ -0,0 +1,63 @@
+package com.androidegris.loderunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Hand over of the changes from the game events to the drawing thread (see
+ * LodeRunnerStage.publishDisplayList and acquireDisplayList).
+ */
+public class DisplayListTest {
+
+	@Test
+	public void listCarriesChangesOfListNeverPainted() {
+		DirtyRegion region = new DirtyRegion();
+		DisplayList skipped = new DisplayList();
+		skipped.addTile(5, LodeRunnerStage.TILE_HOLE_EMPTY);
+		region.addTile(5, 0);
+		skipped.drainDirtyRegion(region);
+
+		DisplayList list = new DisplayList();
+		list.carryChanges(skipped);
+		list.addTile(40, LodeRunnerStage.TILE_BRICK);
+		region.addTile(12, 1);
+		list.drainDirtyRegion(region);
+
+		assertEquals(2, list.getTilesCount());
+		assertEquals(5, list.getTileIndex(0));
+		assertEquals(LodeRunnerStage.TILE_HOLE_EMPTY, list.getTileAppearance(0));
+		assertEquals(40, list.getTileIndex(1));
+		int[] bounds = new int[4];
+		assertTrue(list.getDirtyBounds(bounds));
+		assertArrayEquals(new int[] { 5 * LodeRunnerStage.SPRITE_WIDTH, 0, 13 * LodeRunnerStage.SPRITE_WIDTH,
+				2 * LodeRunnerStage.SPRITE_HEIGHT }, bounds);
+	}
+
+	@Test
+	public void resetListHasNoChanges() {
+		DirtyRegion region = new DirtyRegion();
+		DisplayList list = new DisplayList();
+		list.addTile(5, LodeRunnerStage.TILE_BRICK);
+		region.addAll();
+		list.drainDirtyRegion(region);
+		list.reset();
+		assertEquals(0, list.getTilesCount());
+		assertFalse(list.getDirtyBounds(new int[4]));
+	}
+
+	@Test
+	public void dirtyRegionIsDrainedOnce() {
+		DirtyRegion region = new DirtyRegion();
+		region.addTile(3, 3);
+		DisplayList list = new DisplayList();
+		list.drainDirtyRegion(region);
+		DisplayList next = new DisplayList();
+		next.drainDirtyRegion(region);
+		assertTrue(list.getDirtyBounds(new int[4]));
+		assertFalse(next.getDirtyBounds(new int[4]));
+	}
+}
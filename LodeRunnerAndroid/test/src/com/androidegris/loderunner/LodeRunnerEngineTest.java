@@ -0,0 +1,115 @@
+package com.androidegris.loderunner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Replays of every level with random moves, compared to the games recorded
+ * in res/engine-replay.txt. Any change of the game rules shows as a changed
+ * game: if the change is deliberate, record the games again by running this
+ * class (its main method prints the replay file).
+ */
+public class LodeRunnerEngineTest {
+
+	/** Levels of the game resources */
+	private static final File LEVELS_FILE = new File("../res/raw/loderunnerbin.bin");
+	/** Recorded games, one line per level */
+	private static final File REPLAY_FILE = new File("res/engine-replay.txt");
+	/** Maximum length of a game, in ticks */
+	private static final int MAX_TICKS = 3000;
+	/** A new random move is requested every MOVE_TICKS ticks */
+	static final int MOVE_TICKS = 6;
+	static final int[] MOVES = { LodeRunnerCharacter.MOVE_NONE, LodeRunnerCharacter.MOVE_RUN_LEFT,
+			LodeRunnerCharacter.MOVE_RUN_RIGHT, LodeRunnerCharacter.MOVE_CLIMB_UP, LodeRunnerCharacter.MOVE_CLIMB_DOWN,
+			LodeRunnerHero.MOVE_DIG_LEFT, LodeRunnerHero.MOVE_DIG_RIGHT };
+
+	static LevelStore levelStore;
+
+	@BeforeClass
+	public static void readLevels() throws IOException {
+		levelStore = LevelStore.map(LEVELS_FILE);
+	}
+
+	/**
+	 * Play a level with random moves, the level number being the seed of
+	 * both the stage and the moves.
+	 *
+	 * @return a line describing the game: its end, and a hash of the tiles,
+	 *         hero and villains positions after every tick
+	 */
+	static String replay(int level, boolean useVillainPool, int villainAi) {
+		LodeRunnerEngine engine = new LodeRunnerEngine(levelStore.getLevel(level), level, useVillainPool);
+		engine.setVillainAi(villainAi);
+		Random random = new Random(level);
+		long hash = 17;
+		while (engine.getTicks() < MAX_TICKS && !engine.isOver()) {
+			if (engine.getTicks() % MOVE_TICKS == 0) {
+				engine.requestMove(MOVES[random.nextInt(MOVES.length)]);
+			}
+			engine.tick();
+			hash = hash * 31 + engine.getHeroCenterX();
+			hash = hash * 31 + engine.getHeroCenterY();
+			for (int yTile = 0; yTile < LodeRunnerStage.STAGE_HEIGHT; yTile++) {
+				for (int xTile = 0; xTile < LodeRunnerStage.STAGE_WIDTH; xTile++) {
+					hash = hash * 31 + engine.getTile(xTile, yTile);
+					if (engine.isVillainAt(xTile, yTile)) {
+						hash = hash * 31 + 1;
+					}
+				}
+			}
+		}
+		return "level " + level + " ticks " + engine.getTicks() + " died " + engine.isHeroDead() + " completed "
+				+ engine.isCompleted() + " chests " + engine.getChestsTaken() + "/" + engine.getChestsTotal() + " villains "
+				+ engine.getVillainCount() + " hash " + Long.toHexString(hash);
+	}
+
+	/** Read the lines of a replay file */
+	static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	@Test
+	public void replaysMatchRecordedGames() throws IOException {
+		List<String> recorded = readLines(REPLAY_FILE);
+		assertEquals(LodeRunnerStage.MAX_LEVELS, recorded.size());
+		for (int level = 0; level < LodeRunnerStage.MAX_LEVELS; level++) {
+			assertEquals(recorded.get(level), replay(level, false, LodeRunnerStage.AI_CLASSIC));
+		}
+	}
+
+	@Test
+	public void replaysAreRepeatable() {
+		for (int level = 0; level < 10; level++) {
+			assertEquals(replay(level, false, LodeRunnerStage.AI_FLOW_FIELD), replay(level, false, LodeRunnerStage.AI_FLOW_FIELD));
+		}
+	}
+
+	/** Print the replay file, recording the games as they are played now */
+	public static void main(String[] args) throws IOException {
+		readLevels();
+		for (int level = 0; level < LodeRunnerStage.MAX_LEVELS; level++) {
+			System.out.println(replay(level, false, LodeRunnerStage.AI_CLASSIC));
+		}
+	}
+}
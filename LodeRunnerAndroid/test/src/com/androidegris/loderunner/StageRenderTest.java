@@ -0,0 +1,135 @@
+package com.androidegris.loderunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.androidegris.loderunner.midp.ArgbImage;
+import com.androidegris.loderunner.midp.Graphics;
+import com.androidegris.loderunner.midp.Image;
+
+/**
+ * Rendering of the stage into ARGB images, without Android. Frames painted
+ * along a game, entirely or only where they changed, must end up as the
+ * frame painted at once, and the frames of the first levels are compared to
+ * the ones recorded in res/render-replay.txt (the main method prints the
+ * replay file again).
+ */
+public class StageRenderTest {
+
+	private static final File FONT_FILE = new File("../res/raw/font.png");
+	private static final File TILES_FILE = new File("../res/raw/tiles12x11.png");
+	/** Recorded frames hashes, one line per level */
+	private static final File REPLAY_FILE = new File("res/render-replay.txt");
+	/** Number of levels rendered */
+	private static final int LEVELS = 20;
+	/** Length of the rendered games, in ticks */
+	private static final int TICKS = 300;
+	/** Paint only the last frame */
+	private static final int PAINT_LAST = 0;
+	/** Paint every tick in the same image */
+	private static final int PAINT_EVERY_TICK = 1;
+	/** Paint every tick in the same image, only the area changed (see LodeRunnerDrawingThread.doDraw) */
+	private static final int PAINT_CHANGES_EVERY_TICK = 2;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		LodeRunnerEngineTest.readLevels();
+		Image.setFactory(ArgbImage.FACTORY);
+	}
+
+	private static LodeRunnerStage createStage() throws IOException {
+		InputStream fontInputStream = new FileInputStream(FONT_FILE);
+		InputStream tilesInputStream = new FileInputStream(TILES_FILE);
+		try {
+			return new LodeRunnerStage(fontInputStream, tilesInputStream);
+		} finally {
+			fontInputStream.close();
+			tilesInputStream.close();
+		}
+	}
+
+	/**
+	 * Play a level with random moves (see LodeRunnerEngineTest.replay), and
+	 * paint its frames as told by paintMode (see PAINT_*). The overview is
+	 * painted over the last frame.
+	 */
+	static ArgbImage play(int level, int paintMode) throws IOException {
+		LodeRunnerStage stage = createStage();
+		stage.loadFromBytes(LodeRunnerEngineTest.levelStore.getLevel(level), level);
+		ArgbImage image = (ArgbImage) Image.createImage(LodeRunnerStage.STAGE_WIDTH_PIXELS, LodeRunnerStage.STAGE_HEIGHT_PIXELS);
+		Random random = new Random(level);
+		while (stage.getTicks() < TICKS && !stage.endCompleted && !stage.endHeroDied) {
+			if (stage.getTicks() % LodeRunnerEngineTest.MOVE_TICKS == 0) {
+				stage.hero.requestMove(LodeRunnerEngineTest.MOVES[random.nextInt(LodeRunnerEngineTest.MOVES.length)]);
+			}
+			stage.tick();
+			if (paintMode != PAINT_LAST) {
+				paint(stage, image, paintMode);
+			}
+		}
+		paint(stage, image, paintMode);
+		image.getGraphics().setClip(0, 0, image.getWidth(), image.getHeight());
+		stage.paintMiniMap(image.getGraphics(), 0, 0);
+		return image;
+	}
+
+	private static void paint(LodeRunnerStage stage, ArgbImage image, int paintMode) {
+		stage.publishDisplayList();
+		DisplayList list = stage.acquireDisplayList();
+		Graphics g = image.getGraphics();
+		if (paintMode == PAINT_CHANGES_EVERY_TICK) {
+			int[] bounds = new int[4];
+			if (!list.getDirtyBounds(bounds)) {
+				return;
+			}
+			g.setClip(bounds[0], bounds[1], bounds[2] - bounds[0], bounds[3] - bounds[1]);
+		}
+		stage.paint(g, list);
+	}
+
+	@Test
+	public void framesPaintedAlongTheGameMatchFramePaintedAtOnce() throws IOException {
+		for (int level = 0; level < LEVELS; level++) {
+			assertArrayEquals("level " + level, play(level, PAINT_LAST).getPixels(), play(level, PAINT_EVERY_TICK).getPixels());
+		}
+	}
+
+	@Test
+	public void changesPaintedAlongTheGameMatchFramePaintedAtOnce() throws IOException {
+		for (int level = 0; level < LEVELS; level++) {
+			assertArrayEquals("level " + level, play(level, PAINT_LAST).getPixels(), play(level, PAINT_CHANGES_EVERY_TICK).getPixels());
+		}
+	}
+
+	@Test
+	public void framesMatchRecordedFrames() throws IOException {
+		List<String> recorded = LodeRunnerEngineTest.readLines(REPLAY_FILE);
+		assertEquals(LEVELS, recorded.size());
+		for (int level = 0; level < LEVELS; level++) {
+			assertEquals(recorded.get(level), describe(level, play(level, PAINT_EVERY_TICK)));
+		}
+	}
+
+	private static String describe(int level, ArgbImage image) {
+		return "level " + level + " hash " + Integer.toHexString(Arrays.hashCode(image.getPixels()));
+	}
+
+	/** Print the replay file, recording the frames as they are painted now */
+	public static void main(String[] args) throws IOException {
+		setUp();
+		for (int level = 0; level < LEVELS; level++) {
+			System.out.println(describe(level, play(level, PAINT_EVERY_TICK)));
+		}
+	}
+}
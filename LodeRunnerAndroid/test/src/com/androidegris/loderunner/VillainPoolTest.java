@@ -0,0 +1,42 @@
+package com.androidegris.loderunner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Villains stored in a VillainPool must play exactly the same games as
+ * LodeRunnerVillain objects (see LodeRunnerStage.useVillainPool), with every
+ * villain AI.
+ */
+public class VillainPoolTest {
+
+	/** Recorded games of the object villains, one line per level (see LodeRunnerEngineTest) */
+	private static final File REPLAY_FILE = new File("res/engine-replay.txt");
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		LodeRunnerEngineTest.readLevels();
+	}
+
+	@Test
+	public void poolReplaysMatchRecordedGames() throws IOException {
+		List<String> recorded = LodeRunnerEngineTest.readLines(REPLAY_FILE);
+		for (int level = 0; level < LodeRunnerStage.MAX_LEVELS; level++) {
+			assertEquals(recorded.get(level), LodeRunnerEngineTest.replay(level, true, LodeRunnerStage.AI_CLASSIC));
+		}
+	}
+
+	@Test
+	public void poolReplaysMatchObjectReplaysWithFlowField() {
+		for (int level = 0; level < LodeRunnerStage.MAX_LEVELS; level++) {
+			assertEquals(LodeRunnerEngineTest.replay(level, false, LodeRunnerStage.AI_FLOW_FIELD),
+					LodeRunnerEngineTest.replay(level, true, LodeRunnerStage.AI_FLOW_FIELD));
+		}
+	}
+}